@@ -0,0 +1,61 @@
+package dk.ek.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import dk.ek.dtos.PersonDTO;
+import dk.ek.rest.ContentNegotiation;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: A page of 10.000 persons written and read as JSON, CBOR and Smile, the formats of ContentNegotiation.
+ * The size of the page in each format is printed in the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentFormatBenchmark {
+    private static final int PAGE_SIZE = 10_000;
+
+    @Param({"JSON", "CBOR", "SMILE"})
+    private ContentNegotiation.Format format;
+
+    private List<PersonDTO> page;
+    private ObjectWriter writer;
+    private ObjectReader reader;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() throws IOException {
+        page = new ArrayList<>(PAGE_SIZE);
+        for (long i = 1; i <= PAGE_SIZE; i++)
+            page.add(PersonDTO.builder().id(i).firstName("Hans" + i).lastName("Hansen").email("hans" + i + "@mail.dk")
+                    .birthDate(LocalDate.of(1980, 1, 1).plusDays(i)).address("Vej " + i).hobbies(new TreeSet<>(Set.of("chess", "golf"))).version(0).build());
+        ObjectMapper objectMapper = format.getObjectMapper();
+        writer = objectMapper.writerFor(objectMapper.getTypeFactory().constructCollectionType(List.class, PersonDTO.class));
+        reader = objectMapper.readerFor(objectMapper.getTypeFactory().constructCollectionType(List.class, PersonDTO.class));
+        bytes = writer.writeValueAsBytes(page);
+        System.out.printf("%n%s: %,d bytes for %,d persons%n", format, bytes.length, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        return writer.writeValueAsBytes(page);
+    }
+
+    @Benchmark
+    public List<PersonDTO> read() throws IOException {
+        return reader.readValue(bytes);
+    }
+}
@@ -0,0 +1,52 @@
+package dk.ek.benchmarks;
+
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.model.Person;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: Mapping between the Person entity and PersonDTO, one at a time and a list (as the read endpoints do).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DtoMappingBenchmark {
+    @Param({"100", "1000"})
+    private int size;
+
+    private Person person;
+    private PersonDTO dto;
+    private List<Person> persons;
+
+    @Setup
+    public void setUp() {
+        persons = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            persons.add(new Person("First" + i, "Last" + i, "person" + i + "@mail.com", LocalDate.of(1990, 1, 1).plusDays(i)));
+        person = persons.get(0);
+        dto = new PersonDTO(person);
+    }
+
+    @Benchmark
+    public PersonDTO toDTO() {
+        return new PersonDTO(person);
+    }
+
+    @Benchmark
+    public Person toEntity() {
+        return dto.toEntity();
+    }
+
+    @Benchmark
+    public List<PersonDTO> getEntities() {
+        return PersonDTO.getEntities(persons);
+    }
+}
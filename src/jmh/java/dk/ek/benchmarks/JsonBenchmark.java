@@ -0,0 +1,60 @@
+package dk.ek.benchmarks;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.ek.dtos.PersonDTO;
+import dk.ek.rest.CachingJsonMapper;
+import dk.ek.utils.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: Writing a list of persons as JSON, with the application's ObjectMapper (which uses the generated PersonDTO codec)
+ * and through CachingJsonMapper, which is what ctx.json uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    @Param({"10", "1000"})
+    private int size;
+
+    private final ObjectMapper objectMapper = Utils.getObjectMapper();
+    private final CachingJsonMapper jsonMapper = new CachingJsonMapper(Utils.getObjectMapper());
+    private List<PersonDTO> persons;
+    private byte[] json;
+
+    @Setup
+    public void setUp() throws JsonProcessingException {
+        persons = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            persons.add(new PersonDTO((long) i + 1, "First" + i, "Last" + i, "person" + i + "@mail.com", LocalDate.of(1990, 1, 1).plusDays(i), 0));
+        json = objectMapper.writeValueAsBytes(persons);
+    }
+
+    @Benchmark
+    public byte[] objectMapper() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(persons);
+    }
+
+    @Benchmark
+    public int ctxJson() throws IOException {
+        try (InputStream in = jsonMapper.toJsonStream(persons, Object.class)) {
+            return in.available();
+        }
+    }
+
+    @Benchmark
+    public PersonDTO[] read() throws IOException {
+        return objectMapper.readValue(json, PersonDTO[].class);
+    }
+}
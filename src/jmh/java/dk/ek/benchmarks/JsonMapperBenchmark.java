@@ -0,0 +1,91 @@
+package dk.ek.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import dk.ek.dtos.PersonDTO;
+import dk.ek.dtos.SimplePersonDTO;
+import dk.ek.rest.CachingJsonMapper;
+import dk.ek.utils.Utils;
+import io.javalin.json.JavalinJackson;
+import io.javalin.json.JsonMapper;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: Writing and reading a list of 1000 persons with Javalin's default JsonMapper and with CachingJsonMapper over
+ * plain Jackson (reflection), Jackson with Blackbird, and the application's ObjectMapper with the generated codecs.
+ * That JSON is the same for all of them is checked by JsonMapperTest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonMapperBenchmark {
+    private static final int LIST_SIZE = 1000;
+
+    @Param({"javalin", "reflection", "blackbird", "generated"})
+    private String mapper;
+
+    @Param({"PersonDTO", "SimplePersonDTO"})
+    private String type;
+
+    private JsonMapper jsonMapper;
+    private List<?> list;
+    private Type listType;
+    private String json;
+
+    @Setup
+    public void setUp() throws IOException {
+        jsonMapper = switch (mapper) {
+            case "javalin" -> new JavalinJackson();
+            case "reflection" -> new CachingJsonMapper(new ObjectMapper().registerModule(new JavaTimeModule()));
+            case "blackbird" -> new CachingJsonMapper(new ObjectMapper().registerModule(new JavaTimeModule()).registerModule(new BlackbirdModule()));
+            default -> new CachingJsonMapper(Utils.getObjectMapper());
+        };
+        list = type.equals("PersonDTO") ? persons() : simplePersons();
+        listType = Utils.getObjectMapper().getTypeFactory().constructCollectionType(List.class, list.get(0).getClass());
+        try (InputStream in = new CachingJsonMapper(Utils.getObjectMapper()).toJsonStream(list, Object.class)) {
+            json = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        try (InputStream in = jsonMapper.toJsonStream(list, Object.class)) {
+            return in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    @Benchmark
+    public List<?> read() {
+        return jsonMapper.fromJsonString(json, listType);
+    }
+
+    private static List<PersonDTO> persons() {
+        List<PersonDTO> persons = new ArrayList<>();
+        for (long i = 1; i <= LIST_SIZE; i++)
+            persons.add(new PersonDTO(i, "Hans" + i, "Hansen", "hans" + i + "@mail.dk", LocalDate.of(1980, 1, 1).plusDays(i), 0));
+        return persons;
+    }
+
+    private static List<SimplePersonDTO> simplePersons() {
+        List<SimplePersonDTO> persons = new ArrayList<>();
+        for (int i = 1; i <= LIST_SIZE; i++)
+            persons.add(new SimplePersonDTO(UUID.nameUUIDFromBytes(new byte[]{(byte) i, (byte) (i >> 8)}), "Grethe" + i, "Hansen"
+                    , "grethe" + i + "@mail.dk", LocalDate.of(1990, 1, 1).plusDays(i), SimplePersonDTO.JobTitle.STUDENT));
+        return persons;
+    }
+}
@@ -0,0 +1,98 @@
+package dk.ek.benchmarks;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.json.JsonMapper;
+import io.javalin.validation.Validation;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Purpose: A Context for calling handlers without a server. Javalin's default methods (validation, ctx.json, headers, status) run as they are,
+ * the methods a real Context gets from the servlet request and response answer with the path parameters and body given here, or do nothing.
+ * A dynamic proxy rather than a Mockito mock: Mockito records where every call came from, which costs more than the handlers themselves.
+ */
+class MockContext implements InvocationHandler {
+    private static final String ENCODING = "UTF-8"; // as Jetty's, without it Javalin looks up a null charset on every response
+    private final Map<String, String> pathParams;
+    private final byte[] body;
+    private final JsonMapper jsonMapper;
+    private final Validation validation = new Validation();
+    private final HttpServletRequest req = stub(HttpServletRequest.class);
+    private final HttpServletResponse res;
+    private InputStream result;
+    private int status = 200;
+
+    private MockContext(Map<String, String> pathParams, byte[] body, JsonMapper jsonMapper) {
+        this.pathParams = pathParams;
+        this.body = body;
+        this.jsonMapper = jsonMapper;
+        this.res = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{HttpServletResponse.class}, (proxy, method, args) ->
+                switch (method.getName()) {
+                    case "setStatus" -> {
+                        status = (int) args[0];
+                        yield null;
+                    }
+                    case "getStatus" -> status;
+                    case "getCharacterEncoding" -> ENCODING;
+                    default -> defaultValue(method.getReturnType());
+                });
+    }
+
+    static Context create(Map<String, String> pathParams, byte[] body, JsonMapper jsonMapper) {
+        return (Context) Proxy.newProxyInstance(MockContext.class.getClassLoader(), new Class<?>[]{Context.class}, new MockContext(pathParams, body, jsonMapper));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "req": return req;
+            case "res": return res;
+            case "jsonMapper": return jsonMapper;
+            case "appData": return args[0] == Validation.ValidationKey ? validation : null;
+            case "pathParam": return pathParams.get((String) args[0]);
+            case "pathParamMap": return pathParams;
+            case "bodyAsBytes": return body;
+            case "handlerType": return HandlerType.GET;
+            case "result":
+                if (args != null && args.length == 1 && args[0] instanceof InputStream in) {
+                    result = in;
+                    return proxy;
+                }
+                break;
+            case "resultInputStream": return result;
+        }
+        if (method.isDefault())
+            return InvocationHandler.invokeDefault(proxy, method, args);
+        return defaultValue(method.getReturnType());
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(MockContext.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) ->
+                method.getName().equals("getCharacterEncoding") ? ENCODING : defaultValue(method.getReturnType())));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class)
+            return null;
+        if (type == boolean.class)
+            return false;
+        if (type == char.class)
+            return '\0';
+        if (type == long.class)
+            return 0L;
+        if (type == float.class)
+            return 0f;
+        if (type == double.class)
+            return 0d;
+        if (type == int.class)
+            return 0;
+        return type == short.class ? (short) 0 : (byte) 0;
+    }
+}
@@ -0,0 +1,41 @@
+package dk.ek.benchmarks;
+
+import dk.security.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: The price of a login: User.checkPassword at the BCrypt cost users are created with (User.BCRYPT_COST).
+ * Runs on several threads as well, since the checks of concurrent logins compete for the cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PasswordBenchmark {
+    private User user;
+
+    @Setup
+    public void setUp() {
+        user = new User("benchmark", "pass123");
+    }
+
+    @Benchmark
+    public boolean checkPassword() {
+        return user.checkPassword("pass123");
+    }
+
+    @Benchmark
+    public boolean checkWrongPassword() {
+        return user.checkPassword("wrong");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean checkPasswordConcurrently() {
+        return user.checkPassword("pass123");
+    }
+}
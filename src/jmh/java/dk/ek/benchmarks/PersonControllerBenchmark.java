@@ -0,0 +1,56 @@
+package dk.ek.benchmarks;
+
+import dk.ek.rest.CachingJsonMapper;
+import dk.ek.rest.controllers.PersonController;
+import dk.ek.utils.Utils;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: The PersonController handlers (no database) called directly with a mocked Context (see MockContext), so the server and the network are left out.
+ * What is measured is the handler itself: validation, the map lookup and writing the JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersonControllerBenchmark {
+    private final PersonController controller = new PersonController();
+    private Handler getAll;
+    private Handler getById;
+    private Handler update;
+    private Context ctx;
+
+    @Setup
+    public void setUp() {
+        getAll = controller.getAll();
+        getById = controller.getById();
+        update = controller.update();
+        UUID id = PersonController.getCollection().keySet().iterator().next();
+        String body = "{\"firstName\":\"Anders\",\"lastName\":\"Henningsen\",\"email\":\"hans@mail.com\",\"birthday\":\"1966-01-31\",\"jobTitle\":\"TEACHER\"}";
+        ctx = MockContext.create(Map.of("id", id.toString()), body.getBytes(StandardCharsets.UTF_8), new CachingJsonMapper(Utils.getObjectMapper()));
+    }
+
+    @Benchmark
+    public void getAll() throws Exception {
+        getAll.handle(ctx);
+    }
+
+    @Benchmark
+    public void getById() throws Exception {
+        getById.handle(ctx);
+    }
+
+    @Benchmark
+    public void update() throws Exception {
+        update.handle(ctx);
+    }
+}
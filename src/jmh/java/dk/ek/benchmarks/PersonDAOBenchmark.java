@@ -0,0 +1,104 @@
+package dk.ek.benchmarks;
+
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.HibernateConfig;
+import dk.ek.persistence.daos.PersonDAO;
+import dk.ek.persistence.model.Person;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.CacheMode;
+import org.hibernate.jpa.HibernateHints;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: PersonDAO reads against a real Postgres, started embedded by the benchmark (no Docker needed) and filled with 10.000 persons.
+ * findById is mostly answered by the second-level cache once it is warm, findDTOById by the query cache, the pages always by the database.
+ * loadEntity and loadDTO read the same row from the database past both caches, so they compare the entity (managed instance, snapshot for the dirty check)
+ * with the projection on equal terms. getPage and getDTOPage do the same for 100 rows.
+ * Run them with the gc profiler to compare allocations, gc.alloc.rate.norm is the bytes allocated per call:
+ * mvn -P jmh test -Djmh.args="PersonDAOBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersonDAOBenchmark {
+    private static final int PERSONS = 10_000;
+    private static final int PAGE_SIZE = 100;
+
+    private EmbeddedPostgres postgres;
+    private EntityManagerFactory emf;
+    private PersonDAO dao;
+    private long[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        postgres = EmbeddedPostgres.start();
+        emf = HibernateConfig.createEntityManagerFactory(postgres.getJdbcUrl("postgres", "postgres"), "postgres", "postgres");
+        dao = new PersonDAO(emf);
+        List<Person> persons = new ArrayList<>(PERSONS);
+        for (int i = 0; i < PERSONS; i++)
+            persons.add(new Person("First" + i, "Last" + i, "person" + i + "@mail.com", LocalDate.of(1950, 1, 1).plusDays(i)));
+        dao.createAll(persons);
+        ids = dao.getDTOPage(null, PERSONS).stream().mapToLong(PersonDTO::getId).toArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        emf.close();
+        postgres.close();
+    }
+
+    private long randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+
+    @Benchmark
+    public Person findById() {
+        return dao.findById(randomId());
+    }
+
+    @Benchmark
+    public PersonDTO findDTOById() {
+        return dao.findDTOById(randomId());
+    }
+
+    @Benchmark
+    public Person loadEntity() {
+        try (EntityManager em = emf.createEntityManager()) {
+            return em.createQuery("SELECT p FROM Person p WHERE p.id = :id", Person.class)
+                    .setParameter("id", randomId())
+                    .setHint(HibernateHints.HINT_CACHE_MODE, CacheMode.IGNORE)
+                    .getSingleResult();
+        }
+    }
+
+    @Benchmark
+    public PersonDTO loadDTO() {
+        try (EntityManager em = emf.createEntityManager()) {
+            return em.createQuery("SELECT new dk.ek.dtos.PersonDTO(p.id, p.firstName, p.lastName, p.email, p.birthDate, p.version) FROM Person p WHERE p.id = :id", PersonDTO.class)
+                    .setParameter("id", randomId())
+                    .getSingleResult();
+        }
+    }
+
+    @Benchmark
+    public List<Person> getPage() {
+        return dao.getPage(randomId() - PAGE_SIZE, PAGE_SIZE);
+    }
+
+    @Benchmark
+    public List<PersonDTO> getDTOPage() {
+        return dao.getDTOPage(randomId() - PAGE_SIZE, PAGE_SIZE);
+    }
+}
@@ -0,0 +1,68 @@
+package dk.ek.benchmarks;
+
+import dk.ek.dtos.SimplePersonDTO;
+import dk.ek.persistence.PersonStore;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: Reads from the PersonStore behind the open routes, on one thread and on as many threads as there are cores.
+ * Reads do not lock, so the throughput of the readers should grow with the cores. Also the price of a new id (PersonStore.newId against UUID.randomUUID).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersonStoreBenchmark {
+    private static final int PERSONS = 10_000;
+
+    private final PersonStore store = new PersonStore();
+    private UUID[] ids;
+
+    @Setup
+    public void setUp() {
+        ids = new UUID[PERSONS];
+        for (int i = 0; i < PERSONS; i++)
+            ids[i] = store.create(new SimplePersonDTO("First" + i, "Last" + i, "person" + i + "@mail.com", LocalDate.of(1990, 1, 1), SimplePersonDTO.JobTitle.STUDENT)).getId();
+    }
+
+    @Benchmark
+    public SimplePersonDTO getById() {
+        return store.get(ids[ThreadLocalRandom.current().nextInt(PERSONS)]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public SimplePersonDTO getByIdOnAllCores() {
+        return store.get(ids[ThreadLocalRandom.current().nextInt(PERSONS)]);
+    }
+
+    @Benchmark
+    public SimplePersonDTO getByEmail() {
+        return store.getByEmail("person" + ThreadLocalRandom.current().nextInt(PERSONS) + "@mail.com");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public SimplePersonDTO getByEmailOnAllCores() {
+        return store.getByEmail("person" + ThreadLocalRandom.current().nextInt(PERSONS) + "@mail.com");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public UUID newId() {
+        return PersonStore.newId();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public UUID randomUUID() {
+        return UUID.randomUUID();
+    }
+}
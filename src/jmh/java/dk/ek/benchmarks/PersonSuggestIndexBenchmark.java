@@ -0,0 +1,91 @@
+package dk.ek.benchmarks;
+
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.PersonSuggestIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purpose: PersonSuggestIndex with 1M persons: the latency distribution of a suggestion (p50, p99 and p99.9 in the output) and the heap the index holds.
+ * The heap is measured in the setup, after full collections, and printed as bytes per person. The persons are generated while the index is built, so only the index is counted.
+ * 20.000 of the persons have been updated since the snapshot was built, so the suggestions also merge the delta (below the 5% that starts a compaction).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersonSuggestIndexBenchmark {
+    private static final int PERSONS = 1_000_000;
+    private static final int UPDATED = 20_000;
+    private static final List<String> FIRST_NAMES = List.of("Anna", "Anders", "Bente", "Bo", "Carl", "Camilla", "Dorte", "Emil", "Erik", "Frida"
+            , "Grethe", "Hans", "Helle", "Ida", "Jens", "José", "Karen", "Lars", "Mette", "Niels", "Ole", "Pia", "Rasmus", "Søren", "Tove");
+    private static final List<String> LAST_NAMES = List.of("Andersen", "Berg", "Christensen", "Dahl", "Eriksen", "Frandsen", "Hansen", "Holm", "Jensen", "Kristensen"
+            , "Larsen", "Madsen", "Nielsen", "Olsen", "Pedersen", "Poulsen", "Rasmussen", "Sørensen", "Thomsen", "Ærø");
+
+    private PersonSuggestIndex index;
+    private String[] prefixes;
+
+    private static PersonDTO person(long id, int name) {
+        String first = FIRST_NAMES.get(name % FIRST_NAMES.size());
+        String last = LAST_NAMES.get(name / FIRST_NAMES.size() % LAST_NAMES.size());
+        return new PersonDTO(id, first, last, (first + "." + last + id + "@mail.com").toLowerCase(Locale.ROOT), null);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long before = usedHeap(memory);
+        long start = System.nanoTime();
+        index = new PersonSuggestIndex();
+        index.rebuild(consumer -> {
+            for (long id = 1; id <= PERSONS; id++)
+                consumer.accept(person(id, (int) (id * 7919 % 1_000_003)));
+        });
+        long buildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long snapshotBytes = usedHeap(memory) - before;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < UPDATED; i++)
+            index.put(person(random.nextLong(1, PERSONS + 1), random.nextInt(1_000_003)));
+        long totalBytes = usedHeap(memory) - before;
+        System.out.printf("%n%,d persons built in %,d ms. Snapshot %,d bytes (%d bytes per person), with %,d updates in the delta %,d bytes%n"
+                , index.size(), buildMillis, snapshotBytes, snapshotBytes / PERSONS, UPDATED, totalBytes);
+
+        // the prefixes a user types: 1 to 4 letters of a first or last name, or the start of a full name
+        prefixes = new String[4096];
+        for (int i = 0; i < prefixes.length; i++) {
+            String first = FIRST_NAMES.get(random.nextInt(FIRST_NAMES.size()));
+            String last = LAST_NAMES.get(random.nextInt(LAST_NAMES.size()));
+            String name = switch (i % 3) {
+                case 0 -> first;
+                case 1 -> last;
+                default -> first + " " + last;
+            };
+            prefixes[i] = name.substring(0, Math.min(name.length(), 1 + random.nextInt(i % 3 == 2 ? name.length() : 4)));
+        }
+    }
+
+    private static long usedHeap(MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    @Benchmark
+    public List<PersonDTO> suggest() {
+        return index.suggest(prefixes[ThreadLocalRandom.current().nextInt(prefixes.length)], 10);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<PersonDTO> suggestOnAllCores() {
+        return index.suggest(prefixes[ThreadLocalRandom.current().nextInt(prefixes.length)], 10);
+    }
+}
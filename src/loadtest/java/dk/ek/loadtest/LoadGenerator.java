@@ -0,0 +1,218 @@
+package dk.ek.loadtest;
+
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.HibernateConfig;
+import dk.ek.persistence.daos.PersonDAO;
+import dk.ek.persistence.model.Person;
+import dk.ek.rest.ApplicationConfig;
+import dk.ek.rest.RestRoutes;
+import dk.ek.utils.Utils;
+import dk.security.SecurityDAO;
+import dk.security.rest.SecurtiyRoutes;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import jakarta.persistence.EntityManagerFactory;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Purpose: Load tests the whole stack, Javalin, Hibernate and a real Postgres, on a dev box: mvn -P loadtest test
+ * Starts an embedded Postgres (no Docker needed) with persons and a few users, starts the server on it and runs every mix (see Mix)
+ * at every concurrency for a fixed time. Every client sends its requests back to back, so the latencies are the ones a client waiting
+ * for its answers sees. Throughput, p50/p99/p99.9 latency and error rate of every step are printed and written to a JSON report.
+ * Options, as system properties (with Maven: -Dloadtest.args="-Dloadtest.mixes=read-heavy -Dloadtest.seconds=30"):
+ *   loadtest.mixes           read-heavy, write-heavy and/or login-storm, comma separated (default all three)
+ *   loadtest.concurrency     comma separated client counts (default 1,8,32,128)
+ *   loadtest.seconds         seconds per step (default 10), after loadtest.warmup.seconds (default 5) of warm up per mix
+ *   loadtest.persons         persons in the database (default 10000)
+ *   loadtest.report          the JSON report (default target/loadtest-report.json)
+ *   virtual.threads          true to serve the requests on virtual threads, see ApplicationConfig
+ */
+public class LoadGenerator {
+    private static final int PORT = Integer.getInteger("loadtest.port", 7779);
+    private static final int USERS = 4;
+    private static final String PASSWORD = "pass123";
+    private static final int WARMUP_CONCURRENCY = 8;
+
+    private final Operation.Fixture fixture;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+
+    private LoadGenerator(Operation.Fixture fixture) {
+        this.fixture = fixture;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<Mix> mixes = Arrays.stream(System.getProperty("loadtest.mixes", "read-heavy,write-heavy,login-storm").split(",")).map(Mix::of).toList();
+        int[] levels = Arrays.stream(System.getProperty("loadtest.concurrency", "1,8,32,128").split(",")).map(String::strip).mapToInt(Integer::parseInt).toArray();
+        int seconds = Integer.getInteger("loadtest.seconds", 10);
+        int warmupSeconds = Integer.getInteger("loadtest.warmup.seconds", 5);
+        int persons = Integer.getInteger("loadtest.persons", 10_000);
+        Path reportFile = Path.of(System.getProperty("loadtest.report", "target/loadtest-report.json"));
+        boolean virtualThreads = Boolean.parseBoolean(System.getProperty("virtual.threads", System.getenv("VIRTUAL_THREADS")));
+
+        String startedAt = Instant.now().toString();
+        List<Step> steps = new ArrayList<>();
+        try (EmbeddedPostgres postgres = EmbeddedPostgres.start()) {
+            EntityManagerFactory emf = HibernateConfig.useDatabase(postgres.getJdbcUrl("postgres", "postgres"), "postgres", "postgres");
+            LoadGenerator generator = new LoadGenerator(seed(emf, persons));
+            ApplicationConfig appConfig = startServer(virtualThreads);
+            try {
+                System.out.println(Step.HEADER);
+                for (Mix mix : mixes) {
+                    generator.run(mix, WARMUP_CONCURRENCY, warmupSeconds); // JIT, connection pools and second-level cache
+                    for (int concurrency : levels) {
+                        Step step = generator.run(mix, concurrency, seconds);
+                        System.out.println(step.row());
+                        steps.add(step);
+                    }
+                }
+            } finally {
+                appConfig.stopServer();
+                emf.close();
+            }
+        }
+
+        Report report = new Report(startedAt, Runtime.getRuntime().availableProcessors(), Runtime.version().toString(), virtualThreads, persons, seconds, steps);
+        if (reportFile.getParent() != null)
+            Files.createDirectories(reportFile.getParent());
+        Utils.getObjectMapper().writerWithDefaultPrettyPrinter().writeValue(reportFile.toFile(), report);
+        System.out.println("Report written to " + reportFile.toAbsolutePath());
+        System.exit(steps.stream().allMatch(step -> step.errors() < step.requests()) ? 0 : 1); // the server's executors would keep the JVM alive
+    }
+
+    // A fresh schema with the persons and USERS users (user0, user1, ...) that can log in with PASSWORD
+    private static Operation.Fixture seed(EntityManagerFactory emf, int count) {
+        PersonDAO personDAO = new PersonDAO(emf);
+        List<Person> persons = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            persons.add(new Person("First" + i, "Last" + i, "person" + i + "@mail.com", LocalDate.of(1950, 1, 1).plusDays(i)));
+        personDAO.createAll(persons);
+        List<PersonDTO> stored = personDAO.getDTOPage(null, count);
+
+        SecurityDAO securityDAO = new SecurityDAO(emf);
+        String[] usernames = new String[USERS];
+        for (int i = 0; i < USERS; i++)
+            usernames[i] = securityDAO.createUser("user" + i, PASSWORD).getUsername();
+
+        return new Operation.Fixture("http://localhost:" + PORT + "/api"
+                , stored.stream().mapToLong(PersonDTO::getId).toArray()
+                , stored.stream().map(PersonDTO::getEmail).toArray(String[]::new)
+                , usernames, PASSWORD);
+    }
+
+    private static ApplicationConfig startServer(boolean virtualThreads) {
+        return ApplicationConfig.getInstance()
+                .initiateServer(virtualThreads)
+                .setRoute(new RestRoutes().personEntityRoutes)
+                .setRoute(new SecurtiyRoutes().getSecurityRoute)
+                .startServer(PORT)
+                .setGeneralExceptionHandling();
+    }
+
+    // concurrency clients send requests of the mix for the given time
+    private Step run(Mix mix, int concurrency, int seconds) throws Exception {
+        long start = System.nanoTime();
+        long end = start + Duration.ofSeconds(seconds).toNanos();
+        List<Future<Recorder>> clients = new ArrayList<>(concurrency);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++)
+                clients.add(executor.submit(() -> client(mix, end)));
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9; // the last requests end after the deadline
+        Recorder total = new Recorder();
+        for (Future<Recorder> recorder : clients)
+            total.addAll(recorder.get());
+        return total.toStep(mix, concurrency, elapsedSeconds);
+    }
+
+    private Recorder client(Mix mix, long end) {
+        Recorder recorder = new Recorder();
+        while (System.nanoTime() < end) {
+            Operation operation = mix.next();
+            HttpRequest request = operation.request(fixture, ThreadLocalRandom.current().nextInt(fixture.ids().length)).build();
+            long start = System.nanoTime();
+            int status;
+            try {
+                status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (IOException e) {
+                status = 0; // no response: refused, reset or timed out
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            recorder.add(System.nanoTime() - start, status, status == operation.getExpectedStatus());
+        }
+        return recorder;
+    }
+
+    // The latencies and statuses of the requests of one client, or of all clients when merged
+    private static class Recorder {
+        private long[] nanos = new long[1024];
+        private int count;
+        private long errors;
+        private final Map<String, Long> statuses = new TreeMap<>();
+
+        void add(long latency, int status, boolean ok) {
+            if (count == nanos.length)
+                nanos = Arrays.copyOf(nanos, count * 2);
+            nanos[count++] = latency;
+            if (!ok)
+                errors++;
+            statuses.merge(status == 0 ? "no response" : String.valueOf(status), 1L, Long::sum);
+        }
+
+        void addAll(Recorder other) {
+            if (count + other.count > nanos.length)
+                nanos = Arrays.copyOf(nanos, count + other.count);
+            System.arraycopy(other.nanos, 0, nanos, count, other.count);
+            count += other.count;
+            errors += other.errors;
+            other.statuses.forEach((status, n) -> statuses.merge(status, n, Long::sum));
+        }
+
+        Step toStep(Mix mix, int concurrency, double seconds) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return new Step(mix.label(), concurrency, round(seconds), count, errors, count == 0 ? 0 : round((double) errors / count), round(count / seconds)
+                    , percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999), percentile(sorted, 1), statuses);
+        }
+
+        // In milliseconds, the latency that the given fraction of the requests did not exceed
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0)
+                return 0;
+            int index = Math.max(0, (int) Math.ceil(fraction * sorted.length) - 1);
+            return round(sorted[index] / 1e6);
+        }
+
+        private static double round(double value) {
+            return Math.round(value * 1000) / 1000.0;
+        }
+    }
+
+    record Step(String mix, int concurrency, double seconds, long requests, long errors, double errorRate, double throughput
+            , double p50Ms, double p99Ms, double p999Ms, double maxMs, Map<String, Long> statuses) {
+        static final String HEADER = String.format("%-12s %12s %12s %10s %10s %10s %10s %9s", "mix", "concurrency", "requests/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+        String row() {
+            return String.format("%-12s %12d %12.0f %10.2f %10.2f %10.2f %10.2f %8.2f%%", mix, concurrency, throughput, p50Ms, p99Ms, p999Ms, maxMs, errorRate * 100);
+        }
+    }
+
+    record Report(String startedAt, int cpus, String javaVersion, boolean virtualThreads, int persons, int secondsPerStep, List<Step> steps) {
+    }
+}
@@ -0,0 +1,43 @@
+package dk.ek.loadtest;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Purpose: The traffic mixes of the load generator, as the percentage of each operation.
+ * A login storm is all logins, so it measures what the BCrypt check of a login costs the server when many users log in at once.
+ */
+enum Mix {
+    READ_HEAVY(new Operation[]{Operation.GET_BY_ID, Operation.GET_PAGE, Operation.UPDATE}, new int[]{80, 15, 5}),
+    WRITE_HEAVY(new Operation[]{Operation.GET_BY_ID, Operation.CREATE, Operation.UPDATE}, new int[]{30, 40, 30}),
+    LOGIN_STORM(new Operation[]{Operation.LOGIN}, new int[]{100});
+
+    private final Operation[] operations;
+    private final int[] percentages;
+
+    Mix(Operation[] operations, int[] percentages) {
+        if (Arrays.stream(percentages).sum() != 100)
+            throw new IllegalArgumentException("The percentages of " + name() + " do not add up to 100");
+        this.operations = operations;
+        this.percentages = percentages;
+    }
+
+    Operation next() {
+        int roll = ThreadLocalRandom.current().nextInt(100);
+        for (int i = 0; ; i++) {
+            roll -= percentages[i];
+            if (roll < 0)
+                return operations[i];
+        }
+    }
+
+    // read-heavy, write-heavy or login-storm
+    String label() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+    static Mix of(String label) {
+        return valueOf(label.strip().toUpperCase(Locale.ROOT).replace('-', '_'));
+    }
+}
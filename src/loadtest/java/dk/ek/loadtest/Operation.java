@@ -0,0 +1,79 @@
+package dk.ek.loadtest;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Purpose: The requests the load generator sends, each with the status a successful response has. Any other status counts as an error.
+ */
+enum Operation {
+    GET_BY_ID(200) {
+        @Override
+        HttpRequest.Builder request(Fixture fixture, int person) {
+            return fixture.request("/person/" + fixture.ids()[person]).GET();
+        }
+    },
+    GET_PAGE(200) { // the keyset page after a random person
+        @Override
+        HttpRequest.Builder request(Fixture fixture, int person) {
+            return fixture.request("/person?after=" + fixture.ids()[person] + "&limit=" + PAGE_SIZE).GET();
+        }
+    },
+    CREATE(201) {
+        @Override
+        HttpRequest.Builder request(Fixture fixture, int person) {
+            return json(fixture.request("/person").POST(body("Load", "load" + created.incrementAndGet() + "@mail.com")));
+        }
+    },
+    UPDATE(200) { // without a version, so concurrent updates of the same person do not fail with 409
+        @Override
+        HttpRequest.Builder request(Fixture fixture, int person) {
+            return json(fixture.request("/person/" + fixture.ids()[person]).PUT(body("Updated" + ThreadLocalRandom.current().nextInt(1000), fixture.emails()[person])));
+        }
+    },
+    LOGIN(200) {
+        @Override
+        HttpRequest.Builder request(Fixture fixture, int person) {
+            String username = fixture.usernames()[person % fixture.usernames().length];
+            return json(fixture.request("/auth/login").POST(HttpRequest.BodyPublishers.ofString(
+                    "{\"username\":\"" + username + "\",\"password\":\"" + fixture.password() + "\"}")));
+        }
+    };
+
+    private static final int PAGE_SIZE = 20;
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final AtomicLong created = new AtomicLong(); // emails are unique
+
+    private final int expectedStatus;
+
+    Operation(int expectedStatus) {
+        this.expectedStatus = expectedStatus;
+    }
+
+    int getExpectedStatus() {
+        return expectedStatus;
+    }
+
+    // The request on the given person (an index in the fixture)
+    abstract HttpRequest.Builder request(Fixture fixture, int person);
+
+    private static HttpRequest.BodyPublisher body(String firstName, String email) {
+        return HttpRequest.BodyPublishers.ofString("{\"firstName\":\"" + firstName + "\",\"lastName\":\"Loadtest\",\"email\":\"" + email + "\",\"birthDate\":\"1990-01-01\"}");
+    }
+
+    private static HttpRequest.Builder json(HttpRequest.Builder request) {
+        return request.header("Content-Type", "application/json");
+    }
+
+    /**
+     * What the requests are sent to: the base url of the api, the persons in the database (ids[i] has emails[i]) and the users that can log in.
+     */
+    record Fixture(String url, long[] ids, String[] emails, String[] usernames, String password) {
+        HttpRequest.Builder request(String path) {
+            return HttpRequest.newBuilder(URI.create(url + path)).timeout(TIMEOUT);
+        }
+    }
+}
@@ -24,6 +24,8 @@ public class Main {
                         get("/",ctx->ctx.render("index.html"));
                     });
                 })
+                .setMetrics()
+                .setServerTiming()
                 .startServer(7007)
                 .setCORS()
                 .setGeneralExceptionHandling();
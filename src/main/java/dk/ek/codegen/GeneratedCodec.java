@@ -0,0 +1,28 @@
+package dk.ek.codegen;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.type.TypeFactory;
+
+import java.io.IOException;
+
+/**
+ * Purpose: A JSON codec for one type, generated for the classes annotated with @JsonCodec.
+ * Implementations are listed in META-INF/services, where GeneratedCodecModule finds them.
+ */
+public interface GeneratedCodec<T> {
+    Class<T> type();
+
+    // Writes the value (never null) as a JSON object
+    void write(T value, JsonGenerator generator, SerializerProvider provider) throws IOException;
+
+    // The declared types of the properties, in the order of the deserializers given to read
+    JavaType[] propertyTypes(TypeFactory typeFactory);
+
+    // Reads a JSON object. The parser is at its START_OBJECT (or the first FIELD_NAME). Values that are not read directly are read with the deserializers
+    T read(JsonParser parser, DeserializationContext context, JsonDeserializer<?>[] deserializers) throws IOException;
+}
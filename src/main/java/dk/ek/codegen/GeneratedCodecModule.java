@@ -0,0 +1,80 @@
+package dk.ek.codegen;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.ResolvableDeserializer;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.util.ServiceLoader;
+
+/**
+ * Purpose: A Jackson module with the generated codecs as serializers and deserializers for their types.
+ * Types without a generated codec are left to Jackson as before, and so are the lists, maps etc. that contain the DTOs.
+ */
+public class GeneratedCodecModule extends SimpleModule {
+
+    public GeneratedCodecModule() {
+        super("GeneratedCodecModule");
+        for (GeneratedCodec<?> codec : ServiceLoader.load(GeneratedCodec.class, GeneratedCodecModule.class.getClassLoader()))
+            register(codec);
+    }
+
+    private <T> void register(GeneratedCodec<T> codec) {
+        addSerializer(codec.type(), new CodecSerializer<>(codec));
+        addDeserializer(codec.type(), new CodecDeserializer<>(codec));
+    }
+
+    public static class CodecSerializer<T> extends StdSerializer<T> {
+        private final GeneratedCodec<T> codec;
+
+        CodecSerializer(GeneratedCodec<T> codec) {
+            super(codec.type());
+            this.codec = codec;
+        }
+
+        @Override
+        public void serialize(T value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            codec.write(value, generator, provider);
+        }
+    }
+
+    // The deserializers of the properties are looked up once, when Jackson resolves this deserializer (the same way it does for its own bean deserializers)
+    public static class CodecDeserializer<T> extends StdDeserializer<T> implements ResolvableDeserializer {
+        private final GeneratedCodec<T> codec;
+        private volatile JsonDeserializer<?>[] deserializers;
+
+        CodecDeserializer(GeneratedCodec<T> codec) {
+            super(codec.type());
+            this.codec = codec;
+        }
+
+        @Override
+        public void resolve(DeserializationContext context) throws JsonMappingException {
+            JavaType[] types = codec.propertyTypes(context.getTypeFactory());
+            JsonDeserializer<?>[] resolved = new JsonDeserializer<?>[types.length];
+            for (int i = 0; i < types.length; i++)
+                resolved[i] = context.findContextualValueDeserializer(types[i], null);
+            deserializers = resolved;
+        }
+
+        @Override
+        public T deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (deserializers == null)
+                resolve(context);
+            return codec.read(parser, context, deserializers);
+        }
+
+        @Override
+        public boolean isCachable() {
+            return true;
+        }
+    }
+}
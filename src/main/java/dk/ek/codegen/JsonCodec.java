@@ -0,0 +1,17 @@
+package dk.ek.codegen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Purpose: Marks a DTO for a JSON codec generated at compile time (see processor.JsonCodecProcessor), so Jackson does not have to use reflection for it.
+ * The generated codec writes the same JSON as Jackson would: the fields in declaration order, nulls included.
+ * The DTO must have a getter for every field and a Lombok @Builder, and no Jackson annotations (the codec would not honour them).
+ * Fields are read with the builder, so field initializers are not applied when reading (as with @Builder without @Builder.Default).
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface JsonCodec {
+}
@@ -0,0 +1,327 @@
+package dk.ek.codegen.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Purpose: Generates a GeneratedCodec named <Class>JsonCodec next to every class annotated with @JsonCodec, and lists them in META-INF/services.
+ * The codec writes the fields with getters in declaration order (the order Jackson uses), and reads them into the Lombok builder of the class.
+ * Strings, numbers, booleans and LocalDate are written directly, and strings, longs, ints and booleans are read directly.
+ * The rest (collections, enums, UUID .. and values that need coercion) goes through Jackson's serializers and deserializers for the field types.
+ * Compiled before the rest of the module with -proc:none and then used as an annotation processor for it, see the maven-compiler-plugin in pom.xml.
+ */
+@SupportedAnnotationTypes(JsonCodecProcessor.ANNOTATION)
+public class JsonCodecProcessor extends AbstractProcessor {
+    static final String ANNOTATION = "dk.ek.codegen.JsonCodec";
+    private static final String SERVICE_FILE = "META-INF/services/dk.ek.codegen.GeneratedCodec";
+
+    private final Set<String> generated = new TreeSet<>();
+
+    private enum Kind { STRING, LONG, INT, SHORT, DOUBLE, FLOAT, BOOLEAN, LOCAL_DATE, OTHER }
+
+    private record Property(String name, String getter, TypeMirror type, Kind kind, boolean primitive) { }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations)
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation))
+                generate(element);
+        if (roundEnv.processingOver() && !generated.isEmpty())
+            writeServiceFile();
+        return true;
+    }
+
+    private void generate(Element element) {
+        if (element.getKind() != ElementKind.CLASS || ((TypeElement) element).getNestingKind() != NestingKind.TOP_LEVEL || element.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(element, "@JsonCodec is only supported on top level, non abstract classes");
+            return;
+        }
+        TypeElement type = (TypeElement) element;
+        if (!hasAnnotation(type, "lombok.Builder")) {
+            error(type, "@JsonCodec needs a Lombok @Builder on the class, it is used to read the JSON");
+            return;
+        }
+        List<Property> properties = properties(type);
+        if (properties == null)
+            return;
+        String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String codecName = type.getSimpleName() + "JsonCodec";
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(packageName + "." + codecName, type).openWriter())) {
+            writeCodec(out, packageName, type.getSimpleName().toString(), codecName, properties);
+        } catch (IOException e) {
+            error(type, "Could not write " + codecName + ": " + e.getMessage());
+            return;
+        }
+        generated.add(packageName + "." + codecName);
+    }
+
+    // The properties Jackson would find: the instance fields, in declaration order. Null (after reporting an error) when the codec could not match Jackson
+    private List<Property> properties(TypeElement type) {
+        boolean classGetters = hasAnnotation(type, "lombok.Getter") || hasAnnotation(type, "lombok.Data");
+        List<ExecutableElement> methods = ElementFilter.methodsIn(type.getEnclosedElements());
+        List<Property> properties = new ArrayList<>();
+        boolean valid = !hasJacksonAnnotation(type);
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            if (field.getModifiers().contains(Modifier.STATIC))
+                continue;
+            valid &= !hasJacksonAnnotation(field);
+            if (field.getModifiers().contains(Modifier.TRANSIENT)) {
+                error(field, "@JsonCodec does not support transient fields");
+                valid = false;
+                continue;
+            }
+            String name = field.getSimpleName().toString();
+            TypeMirror fieldType = field.asType();
+            String getter = (fieldType.getKind() == TypeKind.BOOLEAN ? "is" : "get") + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+            boolean hasGetter = classGetters || hasAnnotation(field, "lombok.Getter")
+                    || methods.stream().anyMatch(method -> method.getSimpleName().contentEquals(getter) && method.getParameters().isEmpty());
+            if (!hasGetter) {
+                error(field, "@JsonCodec needs a getter for " + name);
+                valid = false;
+                continue;
+            }
+            if (fieldType.getKind() == TypeKind.TYPEVAR) {
+                error(field, "@JsonCodec does not support type variables");
+                valid = false;
+                continue;
+            }
+            properties.add(new Property(name, getter, fieldType, kindOf(fieldType), fieldType.getKind().isPrimitive()));
+        }
+        // Jackson also writes getters without a field, which the codec would miss
+        for (ExecutableElement method : methods) {
+            valid &= !hasJacksonAnnotation(method);
+            String name = method.getSimpleName().toString();
+            boolean isGetter = method.getParameters().isEmpty() && method.getModifiers().contains(Modifier.PUBLIC) && !method.getModifiers().contains(Modifier.STATIC)
+                    && ((name.startsWith("get") && name.length() > 3 && method.getReturnType().getKind() != TypeKind.VOID)
+                    || (name.startsWith("is") && name.length() > 2 && method.getReturnType().getKind() == TypeKind.BOOLEAN));
+            if (isGetter && properties.stream().noneMatch(property -> property.getter().equals(name))) {
+                error(method, "@JsonCodec does not support getters without a field, Jackson would write " + name);
+                valid = false;
+            }
+        }
+        return valid ? properties : null;
+    }
+
+    private Kind kindOf(TypeMirror type) {
+        switch (type.getKind()) {
+            case LONG: return Kind.LONG;
+            case INT: return Kind.INT;
+            case SHORT: return Kind.SHORT;
+            case DOUBLE: return Kind.DOUBLE;
+            case FLOAT: return Kind.FLOAT;
+            case BOOLEAN: return Kind.BOOLEAN;
+            case DECLARED: break;
+            default: return Kind.OTHER;
+        }
+        return switch (((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString()) {
+            case "java.lang.String" -> Kind.STRING;
+            case "java.lang.Long" -> Kind.LONG;
+            case "java.lang.Integer" -> Kind.INT;
+            case "java.lang.Short" -> Kind.SHORT;
+            case "java.lang.Double" -> Kind.DOUBLE;
+            case "java.lang.Float" -> Kind.FLOAT;
+            case "java.lang.Boolean" -> Kind.BOOLEAN;
+            case "java.time.LocalDate" -> Kind.LOCAL_DATE;
+            default -> Kind.OTHER;
+        };
+    }
+
+    private void writeCodec(PrintWriter out, String packageName, String typeName, String codecName, List<Property> properties) {
+        out.println("package " + packageName + ";");
+        out.println();
+        out.println("import com.fasterxml.jackson.core.JsonGenerator;");
+        out.println("import com.fasterxml.jackson.core.JsonParser;");
+        out.println("import com.fasterxml.jackson.core.JsonToken;");
+        out.println("import com.fasterxml.jackson.core.io.SerializedString;");
+        out.println("import com.fasterxml.jackson.core.type.TypeReference;");
+        out.println("import com.fasterxml.jackson.databind.DeserializationContext;");
+        out.println("import com.fasterxml.jackson.databind.JavaType;");
+        out.println("import com.fasterxml.jackson.databind.JsonDeserializer;");
+        out.println("import com.fasterxml.jackson.databind.SerializationFeature;");
+        out.println("import com.fasterxml.jackson.databind.SerializerProvider;");
+        out.println("import com.fasterxml.jackson.databind.type.TypeFactory;");
+        out.println("import dk.ek.codegen.GeneratedCodec;");
+        out.println();
+        out.println("import java.io.IOException;");
+        out.println();
+        out.println("/**");
+        out.println(" * Purpose: JSON codec for " + typeName + ", generated from its fields by JsonCodecProcessor. Do not edit.");
+        out.println(" */");
+        out.println("@javax.annotation.processing.Generated(\"" + JsonCodecProcessor.class.getName() + "\")");
+        out.println("public final class " + codecName + " implements GeneratedCodec<" + typeName + "> {");
+        for (Property property : properties) {
+            out.println("    private static final SerializedString " + constant(property) + " = new SerializedString(\"" + property.name() + "\");");
+            if (property.kind() == Kind.OTHER && property.type() instanceof DeclaredType declared && !declared.getTypeArguments().isEmpty())
+                out.println("    private static final TypeReference<" + property.type() + "> " + constant(property) + "_TYPE = new TypeReference<" + property.type() + ">() { };");
+        }
+        out.println();
+        out.println("    @Override");
+        out.println("    public Class<" + typeName + "> type() {");
+        out.println("        return " + typeName + ".class;");
+        out.println("    }");
+        out.println();
+        out.println("    @Override");
+        out.println("    public void write(" + typeName + " value, JsonGenerator generator, SerializerProvider provider) throws IOException {");
+        out.println("        generator.writeStartObject(value);");
+        for (Property property : properties)
+            writeProperty(out, property);
+        out.println("        generator.writeEndObject();");
+        out.println("    }");
+        out.println();
+        out.println("    @Override");
+        out.println("    public JavaType[] propertyTypes(TypeFactory typeFactory) {");
+        out.println("        return new JavaType[] {");
+        for (Property property : properties)
+            out.println("                typeFactory.constructType(" + typeLiteral(property) + "),");
+        out.println("        };");
+        out.println("    }");
+        out.println();
+        out.println("    @Override");
+        out.println("    @SuppressWarnings(\"unchecked\")");
+        out.println("    public " + typeName + " read(JsonParser parser, DeserializationContext context, JsonDeserializer<?>[] deserializers) throws IOException {");
+        out.println("        JsonToken token = parser.currentToken();");
+        out.println("        if (token == JsonToken.START_OBJECT)");
+        out.println("            token = parser.nextToken();");
+        out.println("        else if (token != JsonToken.FIELD_NAME && token != JsonToken.END_OBJECT)");
+        out.println("            return (" + typeName + ") context.handleUnexpectedToken(" + typeName + ".class, parser);");
+        out.println("        var builder = " + typeName + ".builder();");
+        out.println("        for (; token == JsonToken.FIELD_NAME; token = parser.nextToken()) {");
+        out.println("            String name = parser.currentName();");
+        out.println("            token = parser.nextToken();");
+        out.println("            switch (name) {");
+        for (int i = 0; i < properties.size(); i++)
+            out.println("                case \"" + properties.get(i).name() + "\" -> builder." + properties.get(i).name() + "(" + readExpression(properties.get(i), i) + ");");
+        out.println("                default -> context.handleUnknownProperty(parser, null, " + typeName + ".class, name);");
+        out.println("            }");
+        out.println("        }");
+        out.println("        return builder.build();");
+        out.println("    }");
+        out.println("}");
+    }
+
+    private void writeProperty(PrintWriter out, Property property) {
+        String value = "value." + property.getter() + "()";
+        out.println("        generator.writeFieldName(" + constant(property) + ");");
+        String write = switch (property.kind()) {
+            case STRING -> "generator.writeString(%s);";
+            case LONG, INT, SHORT, DOUBLE, FLOAT -> "generator.writeNumber(%s);";
+            case BOOLEAN -> "generator.writeBoolean(%s);";
+            // the array form of JavaTimeModule's LocalDateSerializer. With WRITE_DATES_AS_TIMESTAMPS off, Jackson writes it
+            case LOCAL_DATE -> "if (provider.isEnabled(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)) {\n"
+                    + "            generator.writeStartArray();\n"
+                    + "            generator.writeNumber(%1$s.getYear());\n"
+                    + "            generator.writeNumber(%1$s.getMonthValue());\n"
+                    + "            generator.writeNumber(%1$s.getDayOfMonth());\n"
+                    + "            generator.writeEndArray();\n"
+                    + "        } else {\n"
+                    + "            provider.defaultSerializeValue(%1$s, generator);\n"
+                    + "        }";
+            case OTHER -> "provider.defaultSerializeValue(%s, generator);";
+        };
+        if (property.primitive() || property.kind() == Kind.OTHER) {
+            out.println("        " + String.format(write, value));
+            return;
+        }
+        String local = property.name() + "Value";
+        out.println("        " + property.type() + " " + local + " = " + value + ";");
+        out.println("        if (" + local + " == null)");
+        out.println("            generator.writeNull();");
+        if (property.kind() == Kind.LOCAL_DATE) {
+            out.println("        else " + String.format(write, local));
+        } else {
+            out.println("        else");
+            out.println("            " + String.format(write, local));
+        }
+    }
+
+    // The common tokens are read directly, anything else (nulls, coercions, errors) with the Jackson deserializer for the type, as Jackson would
+    private String readExpression(Property property, int index) {
+        TypeMirror boxed = property.primitive() ? processingEnv.getTypeUtils().boxedClass((PrimitiveType) property.type()).asType() : property.type();
+        String deserializer = "deserializers[" + index + "]";
+        String jackson = "token == JsonToken.VALUE_NULL ? (" + boxed + ") " + deserializer + ".getNullValue(context) : (" + boxed + ") " + deserializer + ".deserialize(parser, context)";
+        String fast = switch (property.kind()) {
+            case STRING -> "token == JsonToken.VALUE_STRING ? parser.getText()";
+            case LONG -> "token == JsonToken.VALUE_NUMBER_INT ? (" + boxed + ") parser.getLongValue()";
+            case INT -> "token == JsonToken.VALUE_NUMBER_INT ? (" + boxed + ") parser.getIntValue()";
+            case BOOLEAN -> "token == JsonToken.VALUE_TRUE ? Boolean.TRUE : token == JsonToken.VALUE_FALSE ? Boolean.FALSE";
+            default -> null;
+        };
+        return fast == null ? jackson : fast + " : " + jackson;
+    }
+
+    // The class literal, or the TypeReference constant for generic types
+    private String typeLiteral(Property property) {
+        if (property.kind() == Kind.OTHER && property.type() instanceof DeclaredType declared && !declared.getTypeArguments().isEmpty())
+            return constant(property) + "_TYPE";
+        return processingEnv.getTypeUtils().erasure(property.type()) + ".class";
+    }
+
+    private static String constant(Property property) {
+        return property.name().replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+    }
+
+    private void writeServiceFile() {
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            try (Writer writer = file.openWriter()) {
+                for (String codec : generated)
+                    writer.write(codec + "\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write " + SERVICE_FILE + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean hasAnnotation(Element element, String annotationName) {
+        return element.getAnnotationMirrors().stream().anyMatch(mirror -> name(mirror).equals(annotationName));
+    }
+
+    private boolean hasJacksonAnnotation(Element element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (name(mirror).startsWith("com.fasterxml.jackson.")) {
+                error(element, "@JsonCodec does not support Jackson annotations like " + name(mirror));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String name(AnnotationMirror mirror) {
+        return ((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().toString();
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
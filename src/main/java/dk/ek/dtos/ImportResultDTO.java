@@ -0,0 +1,68 @@
+package dk.ek.dtos;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Purpose: The response of POST /person/import.
+ * received = accepted + rejected. Rows are rejected when they fail validation or when the email already exists (in the database or earlier in the upload).
+ * Only the first maxErrors errors are listed, so a bad upload of millions of rows does not produce a response of millions of errors.
+ */
+@Getter
+@NoArgsConstructor
+public class ImportResultDTO {
+    private long received;
+    private long accepted;
+    private long rejected;
+    private List<RowError> errors = new ArrayList<>();
+    private boolean errorsTruncated;
+
+    @Getter(AccessLevel.NONE)
+    private int maxErrors;
+
+    public ImportResultDTO(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    public void received() {
+        received++;
+    }
+
+    public void accepted(long count) {
+        accepted += count;
+    }
+
+    public void rejected(long row, String message) {
+        rejected++;
+        if (errors.size() < maxErrors)
+            errors.add(new RowError(row, message));
+        else
+            errorsTruncated = true;
+    }
+
+    // Rejected rows that are not listed in errors
+    public void rejected(long count) {
+        rejected += count;
+        if (count > 0)
+            errorsTruncated = true;
+    }
+
+    @JsonIgnore
+    public int getRemainingErrors() {
+        return maxErrors - errors.size();
+    }
+
+    @Getter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class RowError {
+        private long row;
+        private String message;
+    }
+}
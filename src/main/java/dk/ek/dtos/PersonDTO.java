@@ -1,5 +1,6 @@
 package dk.ek.dtos;
 
+import dk.ek.codegen.JsonCodec;
 import dk.ek.persistence.model.Person;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -15,6 +16,7 @@ import java.util.stream.Collectors;
  * Purpose of this class is to
  * Author: Thomas Hartmann
  */
+@JsonCodec // JSON (de)serialization is generated at compile time, see dk.ek.codegen
 @Getter
 @AllArgsConstructor
 @NoArgsConstructor
@@ -27,6 +29,7 @@ public class PersonDTO {
     private LocalDate birthDate;
     private String address;
     private Set<String> hobbies;
+    private Integer version;
 
     public PersonDTO(Long id, String firstName, String lastName, String email, LocalDate birthDate) {
         this.id = id;
@@ -35,6 +38,11 @@ public class PersonDTO {
         this.email = email;
         this.birthDate = birthDate;
     }
+    // Used by the JPQL constructor expressions in PersonDAO (SELECT new dk.ek.dtos.PersonDTO(...))
+    public PersonDTO(Long id, String firstName, String lastName, String email, LocalDate birthDate, Integer version) {
+        this(id, firstName, lastName, email, birthDate);
+        this.version = version;
+    }
     public PersonDTO(Person person) {
         if(person.getId()!=null)
             this.id = person.getId();
@@ -42,6 +50,7 @@ public class PersonDTO {
         this.lastName = person.getLastName();
         this.email = person.getEmail();
         this.birthDate = person.getBirthDate();
+        this.version = person.getVersion();
     }
 
     public void setId(Long id) {
@@ -53,6 +62,7 @@ public class PersonDTO {
                 .lastName(lastName)
                 .email(email)
                 .birthDate(birthDate)
+                .version(version)
                 .build();
         if(id!=null)
             person.setId(id);
@@ -61,6 +71,10 @@ public class PersonDTO {
     public static Set<PersonDTO> getEntities(Set<Person> persons) {
         return persons.stream().map(person -> new PersonDTO(person)).collect(Collectors.toSet());
     }
+    // Keeps the order of the persons, e.g. a page ordered by id
+    public static List<PersonDTO> getEntities(List<Person> persons) {
+        return persons.stream().map(PersonDTO::new).toList();
+    }
 
     @Override
     public String toString() {
@@ -72,6 +86,7 @@ public class PersonDTO {
                 ", birthDate=" + birthDate +
                 ", address='" + address + '\'' +
                 ", hobbies=" + hobbies +
+                ", version=" + version +
                 '}';
     }
 
@@ -1,5 +1,6 @@
 package dk.ek.dtos;
 
+import dk.ek.codegen.JsonCodec;
 import lombok.*;
 
 import java.time.LocalDate;
@@ -9,6 +10,7 @@ import java.util.UUID;
  * Purpose of this class is to
  * Author: Thomas Hartmann
  */
+@JsonCodec // JSON (de)serialization is generated at compile time, see dk.ek.codegen
 @Data
 @Getter
 @AllArgsConstructor
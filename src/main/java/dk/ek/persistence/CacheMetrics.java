@@ -0,0 +1,77 @@
+package dk.ek.persistence;
+
+import jakarta.persistence.EntityManagerFactory;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Purpose: Reads the second-level cache statistics, so the cache regions in ehcache.xml can be sized.
+ * Hits, misses and puts come from the Hibernate statistics. Evictions come from the JCache statistics beans that Ehcache publishes over JMX.
+ */
+public class CacheMetrics {
+    private final Statistics statistics;
+
+    public CacheMetrics(EntityManagerFactory emf) {
+        this.statistics = emf.unwrap(SessionFactory.class).getStatistics();
+    }
+
+    public List<RegionStatistics> getRegionStatistics() {
+        List<RegionStatistics> regions = new ArrayList<>();
+        for (String regionName : statistics.getSecondLevelCacheRegionNames()) {
+            CacheRegionStatistics region = statistics.getCacheRegionStatistics(regionName);
+            if (region == null)
+                continue;
+            regions.add(new RegionStatistics(regionName
+                    , region.getHitCount()
+                    , region.getMissCount()
+                    , region.getPutCount()
+                    , getEvictions(regionName)
+                    , region.getElementCountInMemory()));
+        }
+        return regions;
+    }
+
+    public long getQueryCacheHitCount() {
+        return statistics.getQueryCacheHitCount();
+    }
+
+    public long getQueryCacheMissCount() {
+        return statistics.getQueryCacheMissCount();
+    }
+
+    // -1 when the cache provider does not publish statistics for the region
+    private static long getEvictions(String cacheName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : server.queryNames(new ObjectName("javax.cache:type=CacheStatistics,*"), null)) {
+                if (cacheName.equals(name.getKeyProperty("Cache")))
+                    return ((Number) server.getAttribute(name, "CacheEvictions")).longValue();
+            }
+        } catch (Exception e) {
+            // fall through, the statistics are best effort
+        }
+        return -1;
+    }
+
+    @Getter
+    @ToString
+    @AllArgsConstructor
+    public static class RegionStatistics {
+        private final String region;
+        private final long hits;
+        private final long misses;
+        private final long puts;
+        private final long evictions;
+        private final long size; // -1 when the cache does not report it
+    }
+}
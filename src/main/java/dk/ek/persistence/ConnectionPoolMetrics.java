@@ -0,0 +1,114 @@
+package dk.ek.persistence;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Purpose: Collects metrics from the HikariCP connection pool, so we can see if DAO calls are waiting on a connection rather than on Postgres.
+ * Gauges (active, idle, pending) are read from the pool on demand. Connection acquire times are counted in a histogram with power-of-two microsecond buckets.
+ */
+public class ConnectionPoolMetrics implements MetricsTrackerFactory {
+    // Upper bounds of the buckets in microseconds: 1, 2, 4, ... 2^25 (~33 seconds). The last bucket counts everything above.
+    private static final int BUCKETS = 27;
+
+    private final AtomicLongArray acquireBuckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireNanosTotal = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile String poolName;
+    private volatile PoolStats poolStats;
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolName = poolName;
+        this.poolStats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                recordAcquire(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+            }
+        };
+    }
+
+    private void recordAcquire(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        acquireBuckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        acquireCount.increment();
+        acquireNanosTotal.add(nanos);
+    }
+
+    public String getPoolName() {
+        return poolName;
+    }
+
+    public int getActiveConnections() {
+        return poolStats == null ? 0 : poolStats.getActiveConnections();
+    }
+
+    public int getIdleConnections() {
+        return poolStats == null ? 0 : poolStats.getIdleConnections();
+    }
+
+    public int getTotalConnections() {
+        return poolStats == null ? 0 : poolStats.getTotalConnections();
+    }
+
+    public int getMaxConnections() {
+        return poolStats == null ? 0 : poolStats.getMaxConnections();
+    }
+
+    // Number of threads waiting for a connection from the pool
+    public int getPendingThreads() {
+        return poolStats == null ? 0 : poolStats.getPendingThreads();
+    }
+
+    public long getAcquireCount() {
+        return acquireCount.sum();
+    }
+
+    public long getAcquireNanosTotal() {
+        return acquireNanosTotal.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return the acquire time histogram as cumulative counts keyed by the upper bound of each bucket in microseconds (-1 is the overflow bucket)
+     */
+    public Map<Long, Long> getAcquireHistogram() {
+        Map<Long, Long> histogram = new LinkedHashMap<>();
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += acquireBuckets.get(i);
+            histogram.put(i == BUCKETS - 1 ? -1L : 1L << i, cumulative);
+        }
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPoolMetrics{" +
+                "pool='" + poolName + '\'' +
+                ", active=" + getActiveConnections() +
+                ", idle=" + getIdleConnections() +
+                ", pending=" + getPendingThreads() +
+                ", acquired=" + getAcquireCount() +
+                ", timeouts=" + getTimeouts() +
+                '}';
+    }
+}
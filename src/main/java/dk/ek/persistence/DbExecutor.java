@@ -0,0 +1,126 @@
+package dk.ek.persistence;
+
+import dk.ek.utils.RequestTiming;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Purpose: A bounded executor for blocking database calls, so the server threads are free while queries run.
+ * It has one thread per pooled connection (more threads would only wait for a connection) and a bounded queue (DB_EXECUTOR_QUEUE, default 200).
+ * When the queue is full the task is rejected instead of queued, and the returned future fails with a RejectedExecutionException.
+ * Tasks submitted from a virtual thread (VIRTUAL_THREADS) are run on that thread instead, but no more of them at a time than the executor holds (threads plus queue),
+ * and beyond that they are rejected the same way. The gauges count them as if they were on the executor.
+ */
+public class DbExecutor {
+    private static DbExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final int queueCapacity;
+    private final LongAdder rejected = new LongAdder();
+    private final int inlineLimit;
+    private final Semaphore inline; // the tasks run on virtual threads
+
+    public DbExecutor(int threads, int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        this.inlineLimit = threads + queueCapacity;
+        this.inline = new Semaphore(inlineLimit);
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS
+                , new ArrayBlockingQueue<>(queueCapacity)
+                , runnable -> {
+                    Thread thread = new Thread(runnable, "db-executor-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                , new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // Sized to the connection pool of HibernateConfig
+    public static synchronized DbExecutor getInstance() {
+        if (instance == null) {
+            String queue = System.getenv("DB_EXECUTOR_QUEUE");
+            instance = new DbExecutor(HibernateConfig.getMaxPoolSize(), queue == null ? 200 : Integer.parseInt(queue));
+        }
+        return instance;
+    }
+
+    // The timing and the client of the calling request (if any) are current on the executor thread while the task runs.
+    // A virtual thread runs the task itself: blocking on JDBC is cheap there, and the executor would cap the concurrency at its threads again.
+    // The connection pool is still the limit, but the waiting happens in the pool instead of in the queue. Bounded like the executor, so an overload is rejected (503)
+    // instead of piling up virtual threads that each wait for a connection until the pool's timeout
+    public <T> CompletableFuture<T> supply(Supplier<T> task) {
+        if (Thread.currentThread().isVirtual()) {
+            if (!inline.tryAcquire()) {
+                rejected.increment();
+                return CompletableFuture.failedFuture(new RejectedExecutionException("DbExecutor is saturated: " + inlineLimit + " tasks running or waiting for a connection"));
+            }
+            try {
+                return CompletableFuture.completedFuture(task.get());
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            } finally {
+                inline.release();
+            }
+        }
+        RequestTiming timing = RequestTiming.current();
+        ReadRouting.Client client = ReadRouting.Client.current();
+        Supplier<T> timed = timing == null && client == null ? task : () -> {
+            RequestTiming previous = RequestTiming.set(timing);
+            ReadRouting.Client previousClient = ReadRouting.Client.set(client);
+            try {
+                return task.get();
+            } finally {
+                RequestTiming.set(previous);
+                ReadRouting.Client.set(previousClient);
+            }
+        };
+        try {
+            return CompletableFuture.supplyAsync(timed, executor);
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // Tasks run inline beyond the number of threads are counted as waiting in the queue
+    public int getQueueDepth() {
+        return executor.getQueue().size() + Math.max(0, runningInline() - getThreads());
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount() + Math.min(runningInline(), getThreads());
+    }
+
+    private int runningInline() {
+        return inlineLimit - inline.availablePermits();
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    // 0.0 when idle, 1.0 when every thread is busy and the queue is full
+    public double getSaturation() {
+        return (double) (getActiveCount() + getQueueDepth()) / (getThreads() + queueCapacity);
+    }
+}
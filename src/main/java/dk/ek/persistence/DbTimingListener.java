@@ -0,0 +1,45 @@
+package dk.ek.persistence;
+
+import dk.ek.utils.RequestTiming;
+import org.hibernate.SessionEventListener;
+
+/**
+ * Purpose: Adds the time of every JDBC statement and batch to the timing of the current request (see RequestTiming), for the db entry of the Server-Timing header.
+ * Hibernate creates one per session (hibernate.session.events.auto in HibernateConfig). When the request is not timed it only reads a thread local.
+ */
+public class DbTimingListener implements SessionEventListener {
+    private long startNanos;
+
+    @Override
+    public void jdbcExecuteStatementStart() {
+        startStatement();
+    }
+
+    @Override
+    public void jdbcExecuteStatementEnd() {
+        endStatement();
+    }
+
+    @Override
+    public void jdbcExecuteBatchStart() {
+        startStatement();
+    }
+
+    @Override
+    public void jdbcExecuteBatchEnd() {
+        endStatement();
+    }
+
+    private void startStatement() {
+        if (RequestTiming.current() != null)
+            startNanos = System.nanoTime();
+    }
+
+    private void endStatement() {
+        RequestTiming timing = RequestTiming.current();
+        if (timing != null && startNanos != 0) {
+            timing.addDb(System.nanoTime() - startNanos);
+            startNanos = 0;
+        }
+    }
+}
@@ -3,9 +3,13 @@ package dk.ek.persistence;
 import dk.ek.persistence.model.*;
 //import dk.ek.security.entities.Role;
 //import dk.ek.security.entities.User;
+import dk.ek.utils.Profile;
 import dk.ek.utils.Utils;
 import dk.security.Role;
 import dk.security.User;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
 import org.hibernate.SessionFactory;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
@@ -26,6 +30,12 @@ public class HibernateConfig {
     }
 
     private static EntityManagerFactory emfTest;
+    private static EntityManagerFactory emfReplica;
+    private static final ConnectionPoolMetrics poolMetrics = new ConnectionPoolMetrics();
+    private static final ConnectionPoolMetrics poolMetricsTest = new ConnectionPoolMetrics();
+    private static final ConnectionPoolMetrics poolMetricsReplica = new ConnectionPoolMetrics();
+    private static final String HIKARI_PREFIX = "hibernate.hikari.";
+
     public static EntityManagerFactory getEntityManagerFactory() {
         if (emf == null)
             emf = createEMF(false);
@@ -36,34 +46,117 @@ public class HibernateConfig {
             emfTest = createEMF(true);
         return emfTest;
     }
+
+    // An EntityManagerFactory on the given database with a fresh schema, e.g. an embedded Postgres in the JMH benchmarks (src/jmh/java)
+    public static EntityManagerFactory createEntityManagerFactory(String url, String username, String password) {
+        return createEMF(url, username, password, new ConnectionPoolMetrics());
+    }
+
+    /**
+     * Runs the application on the given database (with a fresh schema) instead of the one of the profile: getEntityManagerFactory() returns
+     * an EntityManagerFactory on it from now on. The load generator (src/loadtest/java) uses it with an embedded Postgres, so the whole stack
+     * can be load tested without Docker or a local Postgres. Call it before the controllers and DAOs are created, they keep the factory they get.
+     */
+    public static EntityManagerFactory useDatabase(String url, String username, String password) {
+        if (emf != null)
+            emf.close();
+        emf = createEMF(url, username, password, poolMetrics);
+        return emf;
+    }
+
+    /**
+     * A read-only EntityManagerFactory on the read replica. The replica is configured with CONNECTION_STR_REPLICA when deployed
+     * and with DB_REPLICA_NAME (a second database on the local Postgres) in development.
+     * When no replica is configured, and in tests, this is the same as getEntityManagerFactory().
+     */
+    public static EntityManagerFactory getReadOnlyEntityManagerFactory() {
+        if (isIntegrationTest || getReplicaUrl() == null)
+            return getEntityManagerFactory();
+        if (emfReplica == null)
+            emfReplica = createReplicaEMF();
+        return emfReplica;
+    }
+
+    // Maximum number of connections in the pool behind getEntityManagerFactory()
+    public static int getMaxPoolSize() {
+        Object size = getEntityManagerFactory().getProperties().get(HIKARI_PREFIX + "maximumPoolSize");
+        return size == null ? 10 : Integer.parseInt(size.toString());
+    }
+
+    public static ConnectionPoolMetrics getReplicaPoolMetrics() {
+        return poolMetricsReplica;
+    }
+
+    // Second-level cache statistics of the EntityManagerFactory currently returned by getEntityManagerFactory()
+    public static CacheMetrics getCacheMetrics() {
+        return new CacheMetrics(getEntityManagerFactory());
+    }
+
+    // Metrics of the connection pool behind the EntityManagerFactory currently returned by getEntityManagerFactory()
+    public static ConnectionPoolMetrics getPoolMetrics() {
+        return isIntegrationTest ? poolMetricsTest : poolMetrics;
+    }
     // TODO: IMPORTANT: Add Entity classes here for them to be registered with Hibernate
     private static void getAnnotationConfiguration(Configuration configuration) {
         configuration.addAnnotatedClass(Role.class);
         configuration.addAnnotatedClass(Person.class);
         configuration.addAnnotatedClass(User.class);
+        configuration.addAuxiliaryDatabaseObject(Person.searchIndexes());
     }
 
     private static EntityManagerFactory createEMF(boolean forTest) {
+        Properties props = new Properties();
+        // Set the properties
+        setBaseProperties(props);
+        if(forTest || isIntegrationTest) {
+            props = setTestProperties(props);
+        }
+        else if(System.getenv("DEPLOYED") != null) {
+            setDeployedProperties(props);
+        }
+        else {
+            props = setDevProperties(props);
+        }
+        return buildEMF(props, forTest || isIntegrationTest ? poolMetricsTest : poolMetrics);
+    }
+
+    private static EntityManagerFactory createEMF(String url, String username, String password, ConnectionPoolMetrics metrics) {
+        Properties props = setBaseProperties(new Properties());
+        props.put("hibernate.connection.url", url);
+        props.put("hibernate.connection.username", username);
+        props.put("hibernate.connection.password", password);
+        props.put("hibernate.hbm2ddl.auto", "create-drop");
+        props.put(HIKARI_PREFIX + "poolName", "javalindemo-" + Integer.toHexString(url.hashCode())); // pool names must be unique for the JMX registration
+        return buildEMF(props, metrics);
+    }
+
+    private static EntityManagerFactory createReplicaEMF() {
+        Properties props = new Properties();
+        setBaseProperties(props);
+        if(System.getenv("DEPLOYED") != null) {
+            setDeployedProperties(props);
+        }
+        else {
+            props = setDevProperties(props);
+        }
+        return buildEMF(setReplicaProperties(props), poolMetricsReplica);
+    }
+
+    private static EntityManagerFactory buildEMF(Properties props, ConnectionPoolMetrics metrics) {
         try {
             Configuration configuration = new Configuration();
-            Properties props = new Properties();
-            // Set the properties
-            setBaseProperties(props);
-            if(forTest || isIntegrationTest) {
-                props = setTestProperties(props);
-            }
-            else if(System.getenv("DEPLOYED") != null) {
-                setDeployedProperties(props);
-            }
-            else {
-                props = setDevProperties(props);
-            }
+            props.put("hibernate.connection.datasource", createDataSource(props, metrics));
+            // The pool has the credentials. With them set, Hibernate asks the pool for getConnection(user, password), which HikariCP does not support
+            props.remove("hibernate.connection.username");
+            props.remove("hibernate.connection.password");
             configuration.setProperties(props);
             getAnnotationConfiguration(configuration);
 
             ServiceRegistry serviceRegistry = new StandardServiceRegistryBuilder().applySettings(configuration.getProperties()).build();
             SessionFactory sf = configuration.buildSessionFactory(serviceRegistry);
             EntityManagerFactory emf = sf.unwrap(EntityManagerFactory.class);
+            if (!"none".equals(props.getProperty("hibernate.hbm2ddl.auto")))
+                catchUpIdSequence(emf);
             return emf;
         } catch (Throwable ex) {
             System.err.println("Initial SessionFactory creation failed." + ex);
@@ -71,6 +164,35 @@ public class HibernateConfig {
         }
     }
 
+    // Runs after the schema tool, so persons_seq exists. A database whose persons got their ids from the IDENTITY column of earlier versions
+    // would otherwise hand out ids that are taken. The sequence never goes back, so it is safe while other instances allocate ids
+    private static void catchUpIdSequence(EntityManagerFactory emf) {
+        try (EntityManager em = emf.createEntityManager()) {
+            em.getTransaction().begin();
+            em.createNativeQuery(Person.idSequenceCatchUpSql()).getResultList();
+            em.getTransaction().commit();
+        }
+    }
+
+    // Hibernate's built-in connection pool is not meant for production, so we hand it a HikariCP pool built from the hibernate.connection.* and hibernate.hikari.* properties
+    private static HikariDataSource createDataSource(Properties props, ConnectionPoolMetrics metrics) {
+        Properties hikariProps = new Properties();
+        props.stringPropertyNames().stream()
+                .filter(name -> name.startsWith(HIKARI_PREFIX))
+                .forEach(name -> hikariProps.setProperty(name.substring(HIKARI_PREFIX.length()), props.getProperty(name)));
+        HikariConfig config = new HikariConfig(hikariProps);
+        config.setDriverClassName(props.getProperty("hibernate.connection.driver_class"));
+        config.setJdbcUrl(props.getProperty("hibernate.connection.url"));
+        config.setUsername(props.getProperty("hibernate.connection.username"));
+        config.setPassword(props.getProperty("hibernate.connection.password"));
+        config.setMetricsTrackerFactory(metrics);
+        return new HikariDataSource(config);
+    }
+
+    private static String getEnv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value;
+    }
 
     private static String getDBName() {
         return Utils.getPropertyValue("db.name", "properties-from-pom.properties");
@@ -80,9 +202,36 @@ public class HibernateConfig {
         props.put("hibernate.connection.driver_class", "org.postgresql.Driver");
         props.put("hibernate.hbm2ddl.auto", "update");
         props.put("hibernate.current_session_context_class", "thread");
-        props.put("hibernate.show_sql", "true");
-        props.put("hibernate.format_sql", "true");
-        props.put("hibernate.use_sql_comments", "true");
+        if (Profile.isDev()) { // every statement is printed to the console, synchronously
+            props.put("hibernate.show_sql", "true");
+            props.put("hibernate.format_sql", "true");
+            props.put("hibernate.use_sql_comments", "true");
+        }
+        // JDBC batching of inserts and updates (used by PersonDAO.createAll)
+        props.put("hibernate.jdbc.batch_size", "50");
+        props.put("hibernate.order_inserts", "true");
+        props.put("hibernate.order_updates", "true");
+        props.put("hibernate.jdbc.batch_versioned_data", "true");
+        // Second-level and query cache (JCache with Ehcache, configured in resources/ehcache.xml)
+        props.put("hibernate.cache.use_second_level_cache", "true");
+        props.put("hibernate.cache.use_query_cache", "true");
+        props.put("hibernate.cache.region.factory_class", "jcache");
+        props.put("hibernate.javax.cache.provider", "org.ehcache.jsr107.EhcacheCachingProvider");
+        props.put("hibernate.javax.cache.uri", "ehcache.xml");
+        props.put("hibernate.generate_statistics", "true"); // needed for the cache hit/miss counts in CacheMetrics
+        props.put("hibernate.session.events.auto", DbTimingListener.class.getName()); // database time of the request, for the Server-Timing header
+        // Connection pool defaults. The profile methods below override what differs per environment
+        props.put(HIKARI_PREFIX + "poolName", "javalindemo");
+        props.put(HIKARI_PREFIX + "maximumPoolSize", "10");
+        props.put(HIKARI_PREFIX + "minimumIdle", "2");
+        props.put(HIKARI_PREFIX + "maxLifetime", "1800000"); // 30 minutes, keep it below the database/proxy idle timeout
+        props.put(HIKARI_PREFIX + "connectionTimeout", "5000");
+        props.put(HIKARI_PREFIX + "registerMbeans", "true"); // pool gauges are also available over JMX
+        // pgjdbc driver properties. Server side prepared statements are cached per connection
+        props.put(HIKARI_PREFIX + "dataSource.reWriteBatchedInserts", "true");
+        props.put(HIKARI_PREFIX + "dataSource.prepareThreshold", "5");
+        props.put(HIKARI_PREFIX + "dataSource.preparedStatementCacheQueries", "256");
+        props.put(HIKARI_PREFIX + "dataSource.preparedStatementCacheSizeMiB", "5");
         return props;
     }
 
@@ -90,6 +239,12 @@ public class HibernateConfig {
         props.setProperty("hibernate.connection.url", System.getenv("CONNECTION_STR") + getDBName());
         props.setProperty("hibernate.connection.username", System.getenv("DB_USERNAME"));
         props.setProperty("hibernate.connection.password", System.getenv("DB_PASSWORD"));
+        props.setProperty(HIKARI_PREFIX + "maximumPoolSize", getEnv("DB_POOL_SIZE", "20"));
+        props.setProperty(HIKARI_PREFIX + "minimumIdle", getEnv("DB_POOL_MIN_IDLE", "5"));
+        props.setProperty(HIKARI_PREFIX + "maxLifetime", getEnv("DB_POOL_MAX_LIFETIME_MS", "1800000"));
+        props.setProperty(HIKARI_PREFIX + "dataSource.prepareThreshold", getEnv("DB_PREPARE_THRESHOLD", "5"));
+        props.setProperty(HIKARI_PREFIX + "dataSource.preparedStatementCacheQueries", getEnv("DB_STATEMENT_CACHE_QUERIES", "256"));
+        props.setProperty(HIKARI_PREFIX + "dataSource.reWriteBatchedInserts", getEnv("DB_REWRITE_BATCHED_INSERTS", "true"));
         return props;
     }
     private static Properties setDevProperties(Properties props){
@@ -98,6 +253,26 @@ public class HibernateConfig {
         props.put("hibernate.connection.password", "postgres");
         return props;
     }
+    private static String getReplicaUrl() {
+        if(System.getenv("DEPLOYED") != null)
+            return System.getenv("CONNECTION_STR_REPLICA") == null ? null : System.getenv("CONNECTION_STR_REPLICA") + getDBName();
+        return System.getenv("DB_REPLICA_NAME") == null ? null : "jdbc:postgresql://localhost:5432/" + System.getenv("DB_REPLICA_NAME");
+    }
+
+    // Overrides the primary's properties for the replica. The replica never changes the schema and has no second-level cache of its own (the cache would not see the primary's writes)
+    private static Properties setReplicaProperties(Properties props){
+        props.setProperty("hibernate.connection.url", getReplicaUrl());
+        props.setProperty("hibernate.connection.username", getEnv("DB_REPLICA_USERNAME", props.getProperty("hibernate.connection.username")));
+        props.setProperty("hibernate.connection.password", getEnv("DB_REPLICA_PASSWORD", props.getProperty("hibernate.connection.password")));
+        props.setProperty("hibernate.hbm2ddl.auto", "none");
+        props.setProperty("hibernate.cache.use_second_level_cache", "false");
+        props.setProperty("hibernate.cache.use_query_cache", "false");
+        props.setProperty(HIKARI_PREFIX + "poolName", "javalindemo-replica");
+        props.setProperty(HIKARI_PREFIX + "readOnly", "true");
+        props.setProperty(HIKARI_PREFIX + "maximumPoolSize", getEnv("DB_REPLICA_POOL_SIZE", props.getProperty(HIKARI_PREFIX + "maximumPoolSize")));
+        return props;
+    }
+
     private static Properties setTestProperties(Properties props){
 //        props.put("hibernate.dialect", "org.hibernate.dialect.PostgreSQLDialect");
         props.put("hibernate.connection.driver_class", "org.testcontainers.jdbc.ContainerDatabaseDriver");
@@ -105,8 +280,11 @@ public class HibernateConfig {
         props.put("hibernate.connection.username", "postgres");
         props.put("hibernate.connection.password", "postgres");
         props.put("hibernate.archive.autodetection", "class");
-        props.put("hibernate.show_sql", "true");
         props.put("hibernate.hbm2ddl.auto", "create-drop");
+        props.put(HIKARI_PREFIX + "poolName", "javalindemo-test"); // pool names must be unique for the JMX registration
+        props.put(HIKARI_PREFIX + "maximumPoolSize", "5");
+        props.put(HIKARI_PREFIX + "minimumIdle", "1");
+        props.put(HIKARI_PREFIX + "connectionTimeout", "30000"); // the first connection waits for the test container to start
         return props;
     }
 }
@@ -0,0 +1,103 @@
+package dk.ek.persistence;
+
+import dk.ek.dtos.SimplePersonDTO;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Purpose: The in-memory persons behind the open routes (PersonController), safe to use from many request threads at once.
+ * Persons are kept by id in a ConcurrentHashMap, with a second map from email to id so a lookup by email is not a scan. Emails are unique.
+ *
+ * Reads never lock, so they scale with the cores. Writes take one lock, which keeps the two maps in step: no two persons can claim the same email,
+ * and an email always leads to the person that has it. A reader can see a write half done (the person changed, the index not yet),
+ * which is why a lookup by email checks the email of the person it finds.
+ *
+ * Ids are version 7 UUIDs: the time in milliseconds followed by random bits from ThreadLocalRandom, so new ids sort after old ones
+ * and making one does not contend on the SecureRandom behind UUID.randomUUID().
+ */
+public class PersonStore {
+    private final Map<UUID, SimplePersonDTO> byId = new ConcurrentHashMap<>();
+    private final Map<String, UUID> byEmail = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    public SimplePersonDTO get(UUID id) {
+        return byId.get(id);
+    }
+
+    public SimplePersonDTO getByEmail(String email) {
+        UUID id = byEmail.get(email);
+        SimplePersonDTO person = id == null ? null : byId.get(id);
+        return person != null && email.equals(person.getEmail()) ? person : null;
+    }
+
+    // A read-only view, changes to the store show up in it
+    public Map<UUID, SimplePersonDTO> asMap() {
+        return Collections.unmodifiableMap(byId);
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * Stores the person under a new id, which is set on the person.
+     * @throws IllegalStateException when another person has the email
+     */
+    public SimplePersonDTO create(SimplePersonDTO person) {
+        person.setId(newId());
+        return put(person.getId(), person);
+    }
+
+    /**
+     * Replaces the person with the id, or stores it under that id if there is none.
+     * @throws IllegalStateException when another person has the email
+     */
+    public SimplePersonDTO update(UUID id, SimplePersonDTO person) {
+        person.setId(id);
+        return put(id, person);
+    }
+
+    // The removed person, or null if there was no person with the id
+    public SimplePersonDTO delete(UUID id) {
+        writeLock.lock();
+        try {
+            SimplePersonDTO removed = byId.remove(id);
+            if (removed != null && removed.getEmail() != null)
+                byEmail.remove(removed.getEmail(), id);
+            return removed;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private SimplePersonDTO put(UUID id, SimplePersonDTO person) {
+        String email = person.getEmail();
+        writeLock.lock();
+        try {
+            UUID owner = email == null ? null : byEmail.get(email);
+            if (owner != null && !owner.equals(id))
+                throw new IllegalStateException("Another person has the email " + email);
+            SimplePersonDTO previous = byId.put(id, person);
+            if (email != null)
+                byEmail.put(email, id);
+            if (previous != null && previous.getEmail() != null && !previous.getEmail().equals(email))
+                byEmail.remove(previous.getEmail(), id);
+            return person;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // A version 7 UUID (RFC 9562): 48 bits of Unix time in milliseconds, the version, 74 random bits and the variant
+    public static UUID newId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long mostSignificant = (System.currentTimeMillis() << 16) | 0x7000L | (random.nextInt() & 0x0fffL);
+        long leastSignificant = (random.nextLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+        return new UUID(mostSignificant, leastSignificant);
+    }
+}
@@ -0,0 +1,111 @@
+package dk.ek.persistence;
+
+import jakarta.persistence.EntityManagerFactory;
+
+/**
+ * Purpose: Decides whether a read goes to the primary database or to the read replica.
+ * Writes always go to the primary. The policy is set with the REPLICA_POLICY environment variable:
+ * PRIMARY (no replica reads), REPLICA (all reads on the replica) or READ_YOUR_WRITES (default):
+ * after a write, the reads of the same client go to the primary for REPLICA_STICKY_MS milliseconds (default 1000),
+ * so a client never reads data that is older than its own write.
+ * The client is the one of the current request (see Client), which the web layer keys by a cookie with the time of its last write.
+ */
+public class ReadRouting {
+    public enum Policy { PRIMARY, REPLICA, READ_YOUR_WRITES }
+
+    private static final ThreadLocal<Client> CURRENT = new ThreadLocal<>();
+
+    private final EntityManagerFactory primary;
+    private final EntityManagerFactory replica;
+    private final Policy policy;
+    private final long stickyMillis;
+
+    public ReadRouting(EntityManagerFactory primary, EntityManagerFactory replica, Policy policy, long stickyMillis) {
+        this.primary = primary;
+        this.replica = replica;
+        this.policy = primary == replica ? Policy.PRIMARY : policy;
+        this.stickyMillis = stickyMillis;
+    }
+
+    // Uses the policy from the environment
+    public ReadRouting(EntityManagerFactory primary, EntityManagerFactory replica) {
+        this(primary, replica
+                , Policy.valueOf(getEnv("REPLICA_POLICY", Policy.READ_YOUR_WRITES.name()).toUpperCase())
+                , getStickyMillis());
+    }
+
+    public static long getStickyMillis() {
+        return Long.parseLong(getEnv("REPLICA_STICKY_MS", "1000"));
+    }
+
+    // The client is told of the write whatever the policy here, since another instance may read for it
+    public EntityManagerFactory forWrite() {
+        Client client = CURRENT.get();
+        if (client != null)
+            client.wrote();
+        return primary;
+    }
+
+    // Without a client (no request, e.g. a script) reads go to the replica
+    public EntityManagerFactory forRead() {
+        return switch (policy) {
+            case PRIMARY -> primary;
+            case REPLICA -> replica;
+            case READ_YOUR_WRITES -> {
+                Client client = CURRENT.get();
+                yield client != null && System.currentTimeMillis() - client.getLastWriteMillis() < stickyMillis ? primary : replica;
+            }
+        };
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * The client of one request and the wall clock time of its last write (0 when unknown).
+     * It is kept in a thread local like RequestTiming, and DbExecutor takes it along to the thread that runs the query.
+     */
+    public static class Client {
+        private volatile long lastWriteMillis;
+        private volatile boolean wroteNow;
+
+        public Client(long lastWriteMillis) {
+            this.lastWriteMillis = lastWriteMillis;
+        }
+
+        // Null when the thread is not serving a request
+        public static Client current() {
+            return CURRENT.get();
+        }
+
+        // Makes client the current one of this thread and returns the one it replaces, to be restored with set when done
+        public static Client set(Client client) {
+            Client previous = CURRENT.get();
+            if (client == null)
+                CURRENT.remove();
+            else
+                CURRENT.set(client);
+            return previous;
+        }
+
+        void wrote() {
+            lastWriteMillis = System.currentTimeMillis();
+            wroteNow = true;
+        }
+
+        public long getLastWriteMillis() {
+            return lastWriteMillis;
+        }
+
+        // True when the request wrote to the primary, i.e. the client must be told the new time of its last write
+        public boolean hasWrittenNow() {
+            return wroteNow;
+        }
+    }
+
+    private static String getEnv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value == null || value.isBlank() ? defaultValue : value;
+    }
+}
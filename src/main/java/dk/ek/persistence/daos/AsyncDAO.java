@@ -0,0 +1,17 @@
+package dk.ek.persistence.daos;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Purpose: The asynchronous counterpart of IDAO. Each method runs the blocking call on a database executor and returns at once.
+ * The futures fail with the same exceptions as the IDAO methods, or with a RejectedExecutionException when the database executor is saturated.
+ * @param <T> The entity class that the DAO should be used for.
+ */
+public interface AsyncDAO<T> {
+    CompletableFuture<T> findById(Long id);
+    CompletableFuture<List<T>> getPage(Long after, int limit);
+    CompletableFuture<T> create(T t);
+    CompletableFuture<T> update(T t);
+    CompletableFuture<Void> delete(Long id);
+}
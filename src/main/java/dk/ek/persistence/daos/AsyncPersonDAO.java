@@ -0,0 +1,78 @@
+package dk.ek.persistence.daos;
+
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.DbExecutor;
+import dk.ek.persistence.model.Person;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Purpose: Runs the PersonDAO calls on the DbExecutor, so the calling (server) thread does not block on JDBC.
+ */
+public class AsyncPersonDAO implements AsyncDAO<Person> {
+    private final PersonDAO personDAO;
+    private final DbExecutor executor;
+
+    public AsyncPersonDAO(PersonDAO personDAO, DbExecutor executor) {
+        this.personDAO = personDAO;
+        this.executor = executor;
+    }
+
+    @Override
+    public CompletableFuture<Person> findById(Long id) {
+        return executor.supply(() -> personDAO.findById(id));
+    }
+
+    @Override
+    public CompletableFuture<List<Person>> getPage(Long after, int limit) {
+        return executor.supply(() -> personDAO.getPage(after, limit));
+    }
+
+    @Override
+    public CompletableFuture<Person> create(Person person) {
+        return executor.supply(() -> personDAO.create(person));
+    }
+
+    @Override
+    public CompletableFuture<Person> update(Person person) {
+        return executor.supply(() -> personDAO.update(person));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(Long id) {
+        return executor.supply(() -> {
+            personDAO.delete(id);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Person> delete(Long id, Integer version) {
+        return executor.supply(() -> personDAO.delete(id, version));
+    }
+
+    public CompletableFuture<PersonDTO> findDTOById(Long id) {
+        return executor.supply(() -> personDAO.findDTOById(id));
+    }
+
+    public CompletableFuture<List<PersonDTO>> getDTOPage(Long after, int limit) {
+        return executor.supply(() -> personDAO.getDTOPage(after, limit));
+    }
+
+    public CompletableFuture<List<PersonDTO>> search(PersonFilter filter, int offset, int limit) {
+        return executor.supply(() -> personDAO.search(filter, offset, limit));
+    }
+
+    public CompletableFuture<Map<String, Object>> findById(Long id, PersonFields fields) {
+        return executor.supply(() -> personDAO.findById(id, fields));
+    }
+
+    public CompletableFuture<List<Map<String, Object>>> getPage(Long after, int limit, PersonFields fields) {
+        return executor.supply(() -> personDAO.getPage(after, limit, fields));
+    }
+
+    public CompletableFuture<List<Map<String, Object>>> search(PersonFilter filter, PersonFields fields, int offset, int limit) {
+        return executor.supply(() -> personDAO.search(filter, fields, offset, limit));
+    }
+}
@@ -1,5 +1,6 @@
 package dk.ek.persistence.daos;
 
+import java.util.List;
 import java.util.Set;
 
 /**
@@ -10,6 +11,8 @@ import java.util.Set;
 interface IDAO<T> {
     T findById(Long id);
     Set<T> getAll();
+    // Keyset (seek) pagination: at most limit entities with an id greater than after, ordered by id. Use the last id of a page as after for the next page
+    List<T> getPage(Long after, int limit);
     T create(T t);
     T update(T t);
     void delete(Long id);
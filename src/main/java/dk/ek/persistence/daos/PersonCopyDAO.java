@@ -0,0 +1,224 @@
+package dk.ek.persistence.daos;
+
+import dk.ek.dtos.ImportResultDTO;
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.model.Person;
+import dk.ek.utils.PersonImportReader;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.postgresql.PGConnection;
+import org.postgresql.core.BaseConnection;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Purpose: Moves persons in and out of the persons table with PostgreSQL COPY, which streams rows without a statement (or an entity) per row.
+ * Works on the JDBC connection under Hibernate, so it bypasses the persistence context and the second-level cache.
+ */
+public class PersonCopyDAO {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+    // The allocationSize of the persons_seq generator in Person: Hibernate uses the ids [nextval - 49, nextval]
+    private static final int SEQUENCE_INCREMENT = Person.ID_ALLOCATION_SIZE;
+
+    public enum ExportFormat { CSV, NDJSON }
+
+    // NDJSON uses the JSON names of PersonDTO. Dates are ISO strings, so an export can be imported again
+    private static final String NDJSON_SELECT = "SELECT json_build_object('id', id, 'firstName', first_name, 'lastName', last_name, 'email', email, 'birthDate', birth_date, 'version', version)::text FROM persons";
+    private static final String CSV_SELECT = "SELECT id, first_name AS \"firstName\", last_name AS \"lastName\", email, birth_date AS \"birthDate\", version FROM persons";
+
+    private final EntityManagerFactory emf;
+    private final EntityManagerFactory readEmf;
+
+    public PersonCopyDAO(EntityManagerFactory emf) {
+        this(emf, emf);
+    }
+
+    // Exports read from readEmf, e.g. a read replica
+    public PersonCopyDAO(EntityManagerFactory emf, EntityManagerFactory readEmf) {
+        this.emf = emf;
+        this.readEmf = readEmf;
+    }
+
+    public ImportResultDTO importPersons(Iterator<PersonImportReader.Row> rows, int maxErrors) {
+        return importPersons(rows, maxErrors, person -> { });
+    }
+
+    /**
+     * Imports the valid rows in one transaction: they are copied into a temporary table and merged into persons from there.
+     * A row is rejected when its email is already in persons or earlier in the upload.
+     * @param imported gets each inserted person (with its id, without birth date and version), before the transaction commits.
+     *                 When the import throws, none of them were imported
+     */
+    public ImportResultDTO importPersons(Iterator<PersonImportReader.Row> rows, int maxErrors, Consumer<PersonDTO> imported) {
+        ImportResultDTO result = new ImportResultDTO(maxErrors);
+        try (EntityManager em = emf.createEntityManager()) {
+            em.getTransaction().begin();
+            try {
+                em.unwrap(Session.class).doWork(connection -> importPersons(connection, rows, result, imported));
+                em.getTransaction().commit();
+            } catch (RuntimeException e) {
+                if (em.getTransaction().isActive())
+                    em.getTransaction().rollback();
+                throw e;
+            }
+        }
+        emf.unwrap(SessionFactory.class).getCache().evictDefaultQueryRegion(); // COPY bypasses Hibernate, so cached queries over persons would not see the new rows
+        return result;
+    }
+
+    private static void importPersons(Connection connection, Iterator<PersonImportReader.Row> rows, ImportResultDTO result, Consumer<PersonDTO> imported) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TEMP TABLE persons_import (row_number bigint, first_name text, last_name text, email text, birth_date date, imported boolean NOT NULL DEFAULT false) ON COMMIT DROP");
+        }
+        long staged = 0;
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new PGCopyOutputStream(pgConnection, "COPY persons_import (row_number, first_name, last_name, email, birth_date) FROM STDIN WITH (FORMAT csv)", COPY_BUFFER_SIZE)
+                , StandardCharsets.UTF_8), COPY_BUFFER_SIZE)) {
+            while (rows.hasNext()) {
+                PersonImportReader.Row row = rows.next();
+                result.received();
+                if (!row.isValid()) {
+                    result.rejected(row.getRowNumber(), row.getError());
+                    continue;
+                }
+                PersonDTO person = row.getPerson();
+                writer.write(Long.toString(row.getRowNumber()));
+                writer.write(',');
+                writeCsvField(writer, person.getFirstName());
+                writer.write(',');
+                writeCsvField(writer, person.getLastName());
+                writer.write(',');
+                writeCsvField(writer, person.getEmail());
+                writer.write(',');
+                writer.write(person.getBirthDate().toString());
+                writer.write('\n');
+                staged++;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (staged == 0)
+            return;
+
+        // One sequence value per block of SEQUENCE_INCREMENT ids, the same way Hibernate allocates them. A first value below the increment would give negative ids, so it is skipped (hence the extra block)
+        long blocks = (staged + SEQUENCE_INCREMENT - 1) / SEQUENCE_INCREMENT;
+        try (PreparedStatement statement = connection.prepareStatement("""
+                CREATE TEMP TABLE persons_import_ids ON COMMIT DROP AS
+                SELECT row_number() OVER (ORDER BY hi) - 1 AS block, hi
+                FROM (SELECT nextval('persons_seq') AS hi FROM generate_series(0, ?)) allocated
+                WHERE hi >= ?""")) {
+            statement.setLong(1, blocks);
+            statement.setLong(2, SEQUENCE_INCREMENT);
+            statement.execute();
+        }
+        // The first row with an email wins. ON CONFLICT skips the emails that are already in persons
+        try (PreparedStatement statement = connection.prepareStatement("""
+                WITH candidates AS (
+                    SELECT row_number, first_name, last_name, email, birth_date, row_number() OVER (ORDER BY row_number) - 1 AS n
+                    FROM (SELECT DISTINCT ON (email) * FROM persons_import ORDER BY email, row_number) firsts
+                ), inserted AS (
+                    INSERT INTO persons (id, first_name, last_name, email, birth_date, version)
+                    SELECT ids.hi - ? + 1 + c.n % ?, c.first_name, c.last_name, c.email, c.birth_date, 0
+                    FROM candidates c JOIN persons_import_ids ids ON ids.block = c.n / ?
+                    ORDER BY c.row_number
+                    ON CONFLICT (email) DO NOTHING
+                    RETURNING id, first_name, last_name, email
+                )
+                UPDATE persons_import i SET imported = true
+                FROM candidates c JOIN inserted USING (email)
+                WHERE i.row_number = c.row_number
+                RETURNING inserted.id, inserted.first_name, inserted.last_name, inserted.email""")) {
+            statement.setLong(1, SEQUENCE_INCREMENT);
+            statement.setLong(2, SEQUENCE_INCREMENT);
+            statement.setLong(3, SEQUENCE_INCREMENT);
+            int accepted = 0;
+            try (ResultSet inserted = statement.executeQuery()) {
+                while (inserted.next()) {
+                    imported.accept(new PersonDTO(inserted.getLong(1), inserted.getString(2), inserted.getString(3), inserted.getString(4), null));
+                    accepted++;
+                }
+            }
+            result.accepted(accepted);
+        }
+        long duplicates = staged - result.getAccepted();
+        // Only the rows that fit in the error list are read back, the rest are only counted
+        try (PreparedStatement statement = connection.prepareStatement("SELECT row_number, email FROM persons_import WHERE NOT imported ORDER BY row_number LIMIT ?")) {
+            statement.setInt(1, result.getRemainingErrors());
+            try (ResultSet rejected = statement.executeQuery()) {
+                while (rejected.next()) {
+                    result.rejected(rejected.getLong(1), "A person with email " + rejected.getString(2) + " already exists");
+                    duplicates--;
+                }
+            }
+        }
+        result.rejected(duplicates);
+    }
+
+    /**
+     * Writes the persons that match the filter to out, ordered by id, as they come from the database. Nothing is buffered in between.
+     * @return the number of persons written
+     */
+    public long export(OutputStream out, ExportFormat format, PersonFilter filter) {
+        try (EntityManager em = readEmf.createEntityManager()) {
+            return em.unwrap(Session.class).doReturningWork(connection -> {
+                BaseConnection pgConnection = connection.unwrap(BaseConnection.class);
+                String select = (format == ExportFormat.CSV ? CSV_SELECT : NDJSON_SELECT) + where(filter, pgConnection) + " ORDER BY id";
+                // COPY's csv format with a quote and delimiter that never occur in JSON, so the JSON lines are written unchanged (the text format would escape the backslashes)
+                String options = format == ExportFormat.CSV ? "FORMAT csv, HEADER" : "FORMAT csv, QUOTE E'\\x01', DELIMITER E'\\x02'";
+                try {
+                    return pgConnection.getCopyAPI().copyOut("COPY (" + select + ") TO STDOUT WITH (" + options + ")", out);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // the client went away, pgjdbc has cancelled the COPY
+                }
+            });
+        }
+    }
+
+    // COPY takes no bind parameters, so the values are written into the statement: numbers and dates as parsed values, text escaped by the driver
+    private static String where(PersonFilter filter, BaseConnection connection) throws SQLException {
+        List<String> conditions = new ArrayList<>();
+        if (filter.getSince() != null)
+            conditions.add("id > " + filter.getSince());
+        if (filter.getFirstName() != null)
+            conditions.add("first_name = " + literal(filter.getFirstName(), connection));
+        if (filter.getLastName() != null)
+            conditions.add("last_name = " + literal(filter.getLastName(), connection));
+        if (filter.getEmail() != null)
+            conditions.add("email = " + literal(filter.getEmail(), connection));
+        if (filter.getBornAfter() != null)
+            conditions.add("birth_date > DATE '" + filter.getBornAfter() + "'");
+        if (filter.getBornBefore() != null)
+            conditions.add("birth_date < DATE '" + filter.getBornBefore() + "'");
+        return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+    }
+
+    private static String literal(String value, BaseConnection connection) throws SQLException {
+        return (connection.getStandardConformingStrings() ? "'" : "E'") + connection.escapeString(value) + "'";
+    }
+
+    // Quotes every field, so commas, quotes and line breaks in names are copied as they are
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
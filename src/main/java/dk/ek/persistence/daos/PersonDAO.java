@@ -1,13 +1,34 @@
 package dk.ek.persistence.daos;
 
 
-import dk.ek.exceptions.EntityNotFoundException;
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.ReadRouting;
 import dk.ek.persistence.model.*;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityNotFoundException;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.NoResultException;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Expression;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import jakarta.persistence.criteria.Selection;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.jpa.HibernateHints;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -17,13 +38,26 @@ import java.util.stream.Collectors;
  */
 public class PersonDAO implements IDAO<Person>{
     private final EntityManagerFactory emf;
+    private final ReadRouting routing;
+    private final int batchSize;
 
     public PersonDAO(EntityManagerFactory emf){
+        this(emf, emf);
+    }
+
+    /**
+     * Writes go to emf. Scans and pages are routed to readEmf (the read replica) according to the ReadRouting policy.
+     * Lookups by id and by email stay on emf, where they are served from the second-level cache.
+     */
+    public PersonDAO(EntityManagerFactory emf, EntityManagerFactory readEmf){
         this.emf = emf;
+        this.routing = new ReadRouting(emf, readEmf);
+        Object configured = emf.getProperties().get("hibernate.jdbc.batch_size");
+        this.batchSize = configured == null ? 50 : Integer.parseInt(configured.toString());
     }
 
     public List<Person> getAllByZip(Integer zip) {
-        try (EntityManager entityManager = emf.createEntityManager()) {
+        try (EntityManager entityManager = routing.forRead().createEntityManager()) {
             entityManager.getTransaction().begin();
             List<Person> persons = entityManager.createQuery("SELECT p FROM Person p LEFT JOIN p.address address WHERE address IS NOT NULL OR address.zip.zip = :zip", Person.class)
                     .setParameter("zip", zip)
@@ -45,6 +79,7 @@ public class PersonDAO implements IDAO<Person>{
             entityManager.getTransaction().begin();
             Person person = entityManager.createQuery("SELECT p FROM Person p WHERE p.email = :mail", Person.class)
                     .setParameter("mail", mail)
+                    .setHint(HibernateHints.HINT_CACHEABLE, true) // the result (the id) goes in the query cache, the person in the second-level cache
                     .getSingleResult();
             entityManager.getTransaction().commit();
             return person;
@@ -55,63 +90,279 @@ public class PersonDAO implements IDAO<Person>{
     }
 
 
+    // em.find (rather than a query) is served from the second-level cache when the person is cached
     @Override
     public Person findById(Long id) {
-        return emf
-                .createEntityManager()
-                .createQuery("SELECT p FROM Person p WHERE p.id = :id", Person.class)
-                .setParameter("id", id)
-                .getSingleResult();
+        try(EntityManager em = emf.createEntityManager()){
+            Person person = em.find(Person.class, id);
+            if(person == null)
+                throw new NoResultException("No person with id: " + id);
+            return person;
+        }
     }
 
     @Override
     public Set<Person> getAll() {
-        return emf
+        return routing.forRead()
                 .createEntityManager()
                 .createQuery("SELECT p FROM Person p", Person.class)
                 .getResultStream().collect(Collectors.toSet());
     }
 
     @Override
-    public Person create(Person person) {
+    public List<Person> getPage(Long after, int limit) {
+        try(EntityManager em = routing.forRead().createEntityManager()){
+            return em.createQuery("SELECT p FROM Person p WHERE p.id > :after ORDER BY p.id", Person.class)
+                    .setParameter("after", after == null ? 0L : after)
+                    .setMaxResults(limit)
+                    .getResultList();
+        }
+    }
+
+    /**
+     * Reads all persons ordered by id through a forward-only cursor and hands them to the consumer one at a time.
+     * Rows are fetched fetchSize at a time and the persistence context is cleared as we go, so memory use is constant no matter the size of the table.
+     * The session is read-only and bypasses the second-level cache.
+     */
+    public void scrollAll(int fetchSize, Consumer<Person> consumer) {
+        try(EntityManager em = routing.forRead().createEntityManager()){
+            Session session = em.unwrap(Session.class);
+            session.setDefaultReadOnly(true);
+            session.setCacheMode(CacheMode.IGNORE); // a full scan would otherwise push every person through the second-level cache and evict the hot ones
+            em.getTransaction().begin(); // PostgreSQL only uses a cursor (and honours the fetch size) when auto-commit is off
+            try (ScrollableResults<Person> results = session
+                    .createQuery("SELECT p FROM Person p ORDER BY p.id", Person.class)
+                    .setFetchSize(fetchSize)
+                    .setReadOnly(true)
+                    .setCacheMode(CacheMode.IGNORE)
+                    .scroll(ScrollMode.FORWARD_ONLY)) {
+                int count = 0;
+                while (results.next()) {
+                    consumer.accept(results.get());
+                    if (++count % fetchSize == 0)
+                        session.clear();
+                }
+            } finally {
+                em.getTransaction().rollback(); // nothing to commit, we only read
+            }
+        }
+    }
+
+    // Projections for the read endpoints. They select straight into PersonDTO, so no entities are loaded into (and dirty checked by) the persistence context
+
+    private static final String DTO_SELECT = "SELECT new dk.ek.dtos.PersonDTO(p.id, p.firstName, p.lastName, p.email, p.birthDate, p.version) FROM Person p";
+
+    public PersonDTO findDTOById(Long id) {
         try(EntityManager em = emf.createEntityManager()){
+            return em.createQuery(DTO_SELECT + " WHERE p.id = :id", PersonDTO.class)
+                    .setParameter("id", id)
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .setHint(HibernateHints.HINT_CACHEABLE, true)
+                    .getSingleResult();
+        }
+    }
+
+    public List<PersonDTO> getDTOPage(Long after, int limit) {
+        try(EntityManager em = routing.forRead().createEntityManager()){
+            return em.createQuery(DTO_SELECT + " WHERE p.id > :after ORDER BY p.id", PersonDTO.class)
+                    .setParameter("after", after == null ? 0L : after)
+                    .setMaxResults(limit)
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .getResultList();
+        }
+    }
+
+    // Sparse versions of findDTOById and getDTOPage: only the columns in fields are selected, and each person is a map of its non-null fields
+
+    public Map<String, Object> findById(Long id, PersonFields fields) {
+        try(EntityManager em = emf.createEntityManager()){
+            return fields.toMap(em.createQuery(fields.getSelect() + " WHERE p.id = :id", Tuple.class)
+                    .setParameter("id", id)
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .setHint(HibernateHints.HINT_CACHEABLE, true)
+                    .getSingleResult());
+        }
+    }
+
+    public List<Map<String, Object>> getPage(Long after, int limit, PersonFields fields) {
+        try(EntityManager em = routing.forRead().createEntityManager()){
+            return em.createQuery(fields.getSelect() + " WHERE p.id > :after ORDER BY p.id", Tuple.class)
+                    .setParameter("after", after == null ? 0L : after)
+                    .setMaxResults(limit)
+                    .setHint(HibernateHints.HINT_READ_ONLY, true)
+                    .getResultStream()
+                    .map(fields::toMap)
+                    .toList();
+        }
+    }
+
+    /**
+     * Searches with the Criteria API. Every condition maps to an index declared on Person, call filter.validateSearch() first to reject the rest.
+     * The sort field is followed by id, so the order is stable from page to page.
+     */
+    public List<PersonDTO> search(PersonFilter filter, int offset, int limit) {
+        try(EntityManager em = routing.forRead().createEntityManager()){
+            CriteriaBuilder cb = em.getCriteriaBuilder();
+            CriteriaQuery<PersonDTO> query = cb.createQuery(PersonDTO.class);
+            Root<Person> person = query.from(Person.class);
+            query.select(cb.construct(PersonDTO.class, person.get("id"), person.get("firstName"), person.get("lastName")
+                    , person.get("email"), person.get("birthDate"), person.get("version")));
+            return searchPage(em, query, person, filter, offset, limit);
+        }
+    }
+
+    // The search above, selecting only the given fields
+    public List<Map<String, Object>> search(PersonFilter filter, PersonFields fields, int offset, int limit) {
+        try(EntityManager em = routing.forRead().createEntityManager()){
+            CriteriaQuery<Tuple> query = em.getCriteriaBuilder().createTupleQuery();
+            Root<Person> person = query.from(Person.class);
+            query.multiselect(fields.getNames().stream().<Selection<?>>map(person::get).toList());
+            return searchPage(em, query, person, filter, offset, limit).stream().map(fields::toMap).toList();
+        }
+    }
+
+    private static <T> List<T> searchPage(EntityManager em, CriteriaQuery<T> query, Root<Person> person, PersonFilter filter, int offset, int limit) {
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        List<Predicate> predicates = new ArrayList<>();
+        if (filter.getLastName() != null) // persons_lower_last_name_idx
+            predicates.add(cb.equal(cb.lower(person.get("lastName")), filter.getLastName().toLowerCase(Locale.ROOT)));
+        if (filter.getBornAfter() != null) // persons_birth_date_idx
+            predicates.add(cb.greaterThan(person.get("birthDate"), filter.getBornAfter()));
+        if (filter.getBornBefore() != null)
+            predicates.add(cb.lessThan(person.get("birthDate"), filter.getBornBefore()));
+        if (filter.getQ() != null) { // persons_first_name_trgm_idx, persons_last_name_trgm_idx and persons_email_trgm_idx
+            String pattern = "%" + escapeLike(filter.getQ().strip().toLowerCase(Locale.ROOT)) + "%";
+            predicates.add(cb.or(
+                    cb.like(cb.lower(person.get("firstName")), pattern, '\\'),
+                    cb.like(cb.lower(person.get("lastName")), pattern, '\\'),
+                    cb.like(cb.lower(person.get("email")), pattern, '\\')));
+        }
+        query.where(predicates.toArray(new Predicate[0]));
+
+        Expression<?> sortBy = person.get(filter.getSortField());
+        query.orderBy(filter.isSortDescending()
+                ? List.of(cb.desc(sortBy), cb.desc(person.get("id")))
+                : List.of(cb.asc(sortBy), cb.asc(person.get("id"))));
+
+        return em.createQuery(query)
+                .setFirstResult(offset)
+                .setMaxResults(limit)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultList();
+    }
+
+    // % and _ in the search string are matched as themselves
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    // A duplicate email fails with Hibernate's ConstraintViolationException
+    @Override
+    public Person create(Person person) {
+        try(EntityManager em = routing.forWrite().createEntityManager()){
             em.getTransaction().begin();
-            em.persist(person);
-            em.getTransaction().commit();
-            return person;
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
-            return null;
+            try {
+                em.persist(person);
+                em.getTransaction().commit();
+                return person;
+            } finally {
+                if (em.getTransaction().isActive())
+                    em.getTransaction().rollback();
+            }
+        }
+    }
+
+    /**
+     * Persists all the persons in one transaction. The inserts are sent to the database in JDBC batches
+     * and the persistence context is flushed and cleared after each batch, so memory use does not grow with the collection.
+     * @return the number of persons created. The ids are set on the given (now detached) persons.
+     */
+    public int createAll(Collection<Person> persons) {
+        try(EntityManager em = routing.forWrite().createEntityManager()){
+            int count = 0;
+            em.getTransaction().begin();
+            try {
+                for (Person person : persons) {
+                    em.persist(person);
+                    if (++count % batchSize == 0) {
+                        em.flush();
+                        em.clear();
+                    }
+                }
+                em.getTransaction().commit();
+            } catch (RuntimeException e) {
+                if (em.getTransaction().isActive())
+                    em.getTransaction().rollback();
+                throw e;
+            }
+            return count;
         }
     }
 
+    /**
+     * Updates the person. It is loaded with find, i.e. from the second-level cache when it is there, and its version is compared with the given one.
+     * The @Version column makes the flush a single UPDATE persons ... WHERE id = ? AND version = ?, which also updates the person's cache entry (and no other).
+     * When the person has no version the update is unconditional, except against a change made between the load and the flush.
+     * @return the person with its new version
+     * @throws EntityNotFoundException when there is no person with that id
+     * @throws OptimisticLockException when the person was changed by someone else since the given version was read
+     */
     @Override
     public Person update(Person person) {
-        try(EntityManager em = emf.createEntityManager()){
-            Person found = em.find(Person.class, person.getId());
-            if(found == null)
-                throw new EntityNotFoundException("No person with id: " + person.getId());
+        try(EntityManager em = routing.forWrite().createEntityManager()){
             em.getTransaction().begin();
-            Person merged = em.merge(person);
-            em.getTransaction().commit();
-            return merged;
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
-            return null;
+            try {
+                Person managed = findForWrite(em, person.getId(), person.getVersion());
+                managed.setFirstName(person.getFirstName());
+                managed.setLastName(person.getLastName());
+                managed.setEmail(person.getEmail());
+                managed.setBirthDate(person.getBirthDate());
+                em.flush(); // so a stale version is thrown as an OptimisticLockException, not wrapped in the RollbackException of commit
+                em.getTransaction().commit();
+                return managed;
+            } finally {
+                if (em.getTransaction().isActive())
+                    em.getTransaction().rollback();
+            }
         }
     }
 
     @Override
     public void delete(Long id) {
-        try(EntityManager em = emf.createEntityManager()){
-            Person found = em.find(Person.class, id);
-            if(found == null)
-                throw new EntityNotFoundException("No person with id: " + id);
+        delete(id, null);
+    }
+
+    /**
+     * Deletes the person. Like update it is loaded with find and its version compared, and the flush is a single DELETE FROM persons WHERE id = ? AND version = ?,
+     * which evicts only this person from the second-level cache.
+     * @param version when not null the person is only deleted if it still has this version
+     * @return the deleted person
+     * @throws EntityNotFoundException when there is no person with that id
+     * @throws OptimisticLockException when the person was changed by someone else since the given version was read
+     */
+    public Person delete(Long id, Integer version) {
+        try(EntityManager em = routing.forWrite().createEntityManager()){
             em.getTransaction().begin();
-            em.remove(found);
-            em.getTransaction().commit();
-        } catch (Exception e) {
-            System.out.println("Error: " + e.getMessage());
+            try {
+                Person person = findForWrite(em, id, version);
+                em.remove(person);
+                em.flush();
+                em.getTransaction().commit();
+                return person;
+            } finally {
+                if (em.getTransaction().isActive())
+                    em.getTransaction().rollback();
+            }
         }
     }
-}
\ No newline at end of file
+
+    // The person to change, checked against the version the client read (if any). Usually served from the second-level cache, without a statement
+    private static Person findForWrite(EntityManager em, Long id, Integer version) {
+        Person person = em.find(Person.class, id);
+        if (person == null)
+            throw new EntityNotFoundException("No person with id: " + id);
+        if (version != null && !version.equals(person.getVersion()))
+            throw new OptimisticLockException("Person with id: " + id + " was changed by someone else. Expected version: " + version);
+        return person;
+    }
+}
@@ -0,0 +1,72 @@
+package dk.ek.persistence.daos;
+
+import jakarta.persistence.Tuple;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Purpose: The PersonDTO fields a client asked for with ?fields=, e.g. fields=firstName,email.
+ * Only those columns are selected, and a person is returned as a map with the fields that are not null, in the order of PersonDTO.
+ * id is always included, it is needed for the next page cursor. There are at most 2^5 field sets, so each one is created once and its JPQL
+ * (and with that Hibernate's query plan, which is cached by the JPQL string) is reused.
+ */
+public class PersonFields {
+    // The PersonDTO fields that are columns of persons. address and hobbies are never read by the person queries
+    private static final List<String> SELECTABLE = List.of("id", "firstName", "lastName", "email", "birthDate", "version");
+    private static final Map<Integer, PersonFields> FIELD_SETS = new ConcurrentHashMap<>();
+
+    private final List<String> names;
+    private final String select;
+
+    private PersonFields(int mask) {
+        List<String> selected = new ArrayList<>();
+        for (int i = 0; i < SELECTABLE.size(); i++)
+            if ((mask & (1 << i)) != 0)
+                selected.add(SELECTABLE.get(i));
+        this.names = List.copyOf(selected);
+        this.select = names.stream().map(name -> "p." + name).collect(Collectors.joining(", ", "SELECT ", " FROM Person p"));
+    }
+
+    /**
+     * @param fields comma separated PersonDTO field names
+     * @throws IllegalArgumentException when a name is not a field that can be selected
+     */
+    public static PersonFields of(String fields) {
+        int mask = 1; // id
+        for (String field : fields.split(",")) {
+            String name = field.strip();
+            if (name.isEmpty())
+                continue;
+            int index = SELECTABLE.indexOf(name);
+            if (index < 0)
+                throw new IllegalArgumentException("Unknown field: " + name + ". fields must be some of " + SELECTABLE);
+            mask |= 1 << index;
+        }
+        return FIELD_SETS.computeIfAbsent(mask, PersonFields::new);
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    // SELECT p.id, p.<field>, ... FROM Person p
+    public String getSelect() {
+        return select;
+    }
+
+    // The row of a query selecting getNames(), in that order
+    public Map<String, Object> toMap(Tuple row) {
+        Map<String, Object> person = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            Object value = row.get(i);
+            if (value != null)
+                person.put(names.get(i), value);
+        }
+        return person;
+    }
+}
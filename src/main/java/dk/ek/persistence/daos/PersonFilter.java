@@ -0,0 +1,63 @@
+package dk.ek.persistence.daos;
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.LocalDate;
+import java.util.Set;
+
+/**
+ * Purpose: Conditions on the columns of Person. Fields that are null are not used, the rest must all match.
+ * A search (PersonDAO.search) only accepts the combinations that the indexes declared on Person can answer, see validateSearch().
+ */
+@Getter
+@Builder
+@ToString
+public class PersonFilter {
+    public static final int MIN_SEARCH_LENGTH = 3; // the trigram index can not be used for shorter search strings
+    private static final Set<String> SORT_FIELDS = Set.of("id", "lastName", "birthDate");
+
+    private final Long since; // only persons with an id above this one, i.e. created after it
+    private final String firstName;
+    private final String lastName;
+    private final String email;
+    private final LocalDate bornAfter;
+    private final LocalDate bornBefore;
+    private final String q; // case-insensitive substring of first name, last name or email
+    private final String sort; // id, lastName or birthDate. A leading - sorts descending
+
+    /**
+     * Rejects the searches that would scan the whole table:
+     * firstName and email are not indexed for searching, q must have at least MIN_SEARCH_LENGTH characters,
+     * and sorting by lastName needs a lastName or q condition when there is a birth date range (else it reads the lastName index from one end).
+     * @throws IllegalArgumentException with the reason
+     */
+    public void validateSearch() {
+        if (firstName != null || email != null || since != null)
+            throw new IllegalArgumentException("Only lastName, bornAfter, bornBefore, q and sort can be used to search for persons");
+        if (q != null && q.strip().length() < MIN_SEARCH_LENGTH)
+            throw new IllegalArgumentException("q must have at least " + MIN_SEARCH_LENGTH + " characters");
+        if (bornAfter != null && bornBefore != null && !bornAfter.isBefore(bornBefore))
+            throw new IllegalArgumentException("bornAfter must be before bornBefore");
+        if (!SORT_FIELDS.contains(getSortField()))
+            throw new IllegalArgumentException("sort must be one of " + SORT_FIELDS + ", optionally prefixed with - for descending order");
+        if (getSortField().equals("lastName") && hasBirthDateRange() && lastName == null && q == null)
+            throw new IllegalArgumentException("sort=lastName can not be combined with a birth date range alone, use sort=birthDate or add lastName or q");
+    }
+
+    // Without a sort, results follow the index the filter uses: birth date for a birth date range, else id
+    public String getSortField() {
+        if (sort == null || sort.isBlank())
+            return hasBirthDateRange() && lastName == null && q == null ? "birthDate" : "id";
+        return sort.startsWith("-") ? sort.substring(1) : sort;
+    }
+
+    public boolean isSortDescending() {
+        return sort != null && sort.startsWith("-");
+    }
+
+    public boolean hasBirthDateRange() {
+        return bornAfter != null || bornBefore != null;
+    }
+}
@@ -2,9 +2,16 @@ package dk.ek.persistence.model;
 
 import jakarta.persistence.*;
 import lombok.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.ColumnDefault;
+import org.hibernate.boot.model.relational.AuxiliaryDatabaseObject;
+import org.hibernate.boot.model.relational.SimpleAuxiliaryDatabaseObject;
+import org.hibernate.dialect.PostgreSQLDialect;
 
 import java.time.LocalDate;
 import java.time.Period;
+import java.util.Set;
 
 /**
  * Purpose of this class is to
@@ -16,14 +23,23 @@ import java.time.Period;
 @NoArgsConstructor
 @AllArgsConstructor
 @Builder
-@Table(name = "persons")
+// Indexes for the searches in PersonDAO.search: sorting by last name and birth date ranges. The case-insensitive ones are in searchIndexes()
+@Table(name = "persons", indexes = {
+        @Index(name = "persons_last_name_idx", columnList = "last_name, id"),
+        @Index(name = "persons_birth_date_idx", columnList = "birth_date, id")
+})
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "persons")
 @NamedQueries({
         @NamedQuery(name="Person.deleteAll", query="DELETE FROM Person")
 })
 public class Person {
+    public static final int ID_ALLOCATION_SIZE = 50; // ids per persons_seq value, Hibernate uses the ids [nextval - 49, nextval]
 
+    // A pooled sequence lets Hibernate hand out 50 ids per round trip and batch the inserts (IDENTITY forces one INSERT per persist)
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "persons_seq")
+    @SequenceGenerator(name = "persons_seq", sequenceName = "persons_seq", allocationSize = ID_ALLOCATION_SIZE)
     @Column(name = "id", nullable = false)
     private Long id;
 
@@ -40,6 +56,12 @@ public class Person {
     @Column(name = "birth_date", nullable = false)
     private LocalDate birthDate;
 
+    // Optimistic locking. Updates and deletes can be made conditional on the version the client last read
+    @Version
+    @ColumnDefault("0") // lets hbm2ddl add the column to a table that already has rows
+    @Column(name = "version", nullable = false)
+    private Integer version;
+
     public Person(String firstName, String lastName, String email, LocalDate birthDate) {
         this.firstName = firstName;
         this.lastName = lastName;
@@ -47,6 +69,33 @@ public class Person {
         this.birthDate = birthDate;
     }
 
+    /**
+     * Indexes on expressions, which @Index can not declare. They are created by hbm2ddl on PostgreSQL only (IF NOT EXISTS, since 'update' runs them on every start):
+     * lower(last_name) for the case-insensitive lastName filter, and trigram indexes (pg_trgm) for the q search with LIKE '%...%'.
+     */
+    public static AuxiliaryDatabaseObject searchIndexes() {
+        return new SimpleAuxiliaryDatabaseObject(Set.of(PostgreSQLDialect.class.getName()), null, null
+                , new String[]{
+                        "CREATE EXTENSION IF NOT EXISTS pg_trgm",
+                        "CREATE INDEX IF NOT EXISTS persons_lower_last_name_idx ON persons (lower(last_name), birth_date)",
+                        // one index per column: PostgreSQL combines them for the OR in the search (BitmapOr), but not the columns of one multi-column gin index
+                        "CREATE INDEX IF NOT EXISTS persons_first_name_trgm_idx ON persons USING gin (lower(first_name) gin_trgm_ops)",
+                        "CREATE INDEX IF NOT EXISTS persons_last_name_trgm_idx ON persons USING gin (lower(last_name) gin_trgm_ops)",
+                        "CREATE INDEX IF NOT EXISTS persons_email_trgm_idx ON persons USING gin (lower(email) gin_trgm_ops)"}
+                , new String[]{
+                        "DROP INDEX IF EXISTS persons_email_trgm_idx",
+                        "DROP INDEX IF EXISTS persons_last_name_trgm_idx",
+                        "DROP INDEX IF EXISTS persons_first_name_trgm_idx",
+                        "DROP INDEX IF EXISTS persons_lower_last_name_idx"});
+    }
+
+    // Moves persons_seq past the highest id in persons, if it is not already. HibernateConfig runs it on every start
+    public static String idSequenceCatchUpSql() {
+        // the next nextval is last_value (+ the increment once it has been called). Its block of ids must start above max(id)
+        return "SELECT setval('persons_seq', (SELECT max(id) FROM persons) + " + ID_ALLOCATION_SIZE + ", false)"
+                + " WHERE (SELECT max(id) FROM persons) > (SELECT last_value + CASE WHEN is_called THEN " + ID_ALLOCATION_SIZE + " ELSE 0 END FROM persons_seq) - " + ID_ALLOCATION_SIZE;
+    }
+
     public int getAge(){
         return Period.between(LocalDate.now(), birthDate).getYears();
     }
@@ -0,0 +1,45 @@
+package dk.ek.rest;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.RequestLogger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Purpose: One structured line (key=value pairs) per request on the "access" logger, which logback.xml only writes in the prod profile, asynchronously.
+ * ACCESS_LOG_SAMPLE (or the access.log.sample system property), between 0 and 1, is the share of the requests that is logged. Server errors are always logged.
+ */
+public class AccessLog implements RequestLogger {
+    private static final Logger logger = LoggerFactory.getLogger("access");
+    private final double sample;
+
+    public AccessLog() {
+        this(Double.parseDouble(System.getProperty("access.log.sample", Objects.requireNonNullElse(System.getenv("ACCESS_LOG_SAMPLE"), "1"))));
+    }
+
+    public AccessLog(double sample) {
+        this.sample = sample;
+    }
+
+    @Override
+    public void handle(Context ctx, Float executionTimeMs) {
+        if (!logger.isInfoEnabled())
+            return;
+        int status = ctx.statusCode();
+        if (status < 500 && sample < 1 && ThreadLocalRandom.current().nextDouble() >= sample)
+            return;
+        logger.atInfo()
+                .addKeyValue("method", ctx.method())
+                .addKeyValue("path", ctx.path())
+                .addKeyValue("route", ctx.handlerType() == HandlerType.BEFORE ? "" : ctx.endpointHandlerPath()) // no route matched, e.g. a 404
+                .addKeyValue("status", status)
+                .addKeyValue("ms", String.format(Locale.ROOT, "%.2f", executionTimeMs))
+                .addKeyValue("ip", ctx.ip())
+                .log();
+    }
+}
@@ -3,10 +3,15 @@ package dk.ek.rest;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import dk.ek.exceptions.ApiException;
+import dk.ek.utils.Profile;
+import dk.ek.utils.Utils;
 //import dk.ek.security.ISecurityController;
 //import dk.ek.security.SecurityController;
 import io.javalin.Javalin;
 import io.javalin.apibuilder.EndpointGroup;
+import io.javalin.compression.Brotli;
+import io.javalin.compression.CompressionStrategy;
+import io.javalin.compression.Gzip;
 import io.javalin.config.JavalinConfig;
 import io.javalin.http.Context;
 import static io.javalin.apibuilder.ApiBuilder.path;
@@ -15,16 +20,24 @@ import static io.javalin.apibuilder.ApiBuilder.path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Objects;
+
 /**
  * Purpose: To configure the Javalin server
  * Author: Thomas Hartmann
  */
 public class ApplicationConfig {
-    private ObjectMapper jsonMapper = new ObjectMapper();
+    private ObjectMapper jsonMapper = Utils.getObjectMapper();
     private Logger logger = LoggerFactory.getLogger(ApplicationConfig.class);
     private static ApplicationConfig appConfig;
     private static JavalinConfig javalinConfig;
     private static Javalin app;
+    private static PinningGuard pinningGuard;
+    private static RouteMetrics routeMetrics;
+    private static ServerTiming serverTiming;
+    private static final LastWriteCookie lastWriteCookie = new LastWriteCookie();
 //    private static ISecurityController securityController = SecurityController.getInstance();
 
     private ApplicationConfig() {
@@ -37,18 +50,57 @@ public class ApplicationConfig {
         return appConfig;
     }
 
+    // Virtual threads are opt-in: set the VIRTUAL_THREADS environment variable (or the virtual.threads system property) to true
     public ApplicationConfig initiateServer() {
+        String virtualThreads = System.getProperty("virtual.threads", System.getenv("VIRTUAL_THREADS"));
+        return initiateServer(Boolean.parseBoolean(virtualThreads));
+    }
+
+    // With virtual threads every request gets its own virtual thread instead of one of Jetty's ~200 platform threads, so blocked JDBC calls no longer cap the concurrency
+    public ApplicationConfig initiateServer(boolean useVirtualThreads) {
+        StaticAssets staticAssets = StaticAssets.load("/public");
         app = Javalin.create(config -> {
             javalinConfig = config;
-            config.bundledPlugins.enableDevLogging(); // enables extensive development logging in terminal
-            config.staticFiles.add("/public"); // enables serving of static files from the public folder in the classpath. PROs: easy to use, CONs: you have to restart the server every time you change a file
+            config.useVirtualThreads = useVirtualThreads;
+            if (Profile.isDev())
+                config.bundledPlugins.enableDevLogging(); // enables extensive development logging in terminal
+            else
+                config.requestLogger.http(new AccessLog()); // only written in prod, see logback.xml and logback/prod.properties
+            if (staticAssets == null) // the files in /public were not precompressed by the build, serve them as they are
+                config.staticFiles.add("/public"); // enables serving of static files from the public folder in the classpath. PROs: easy to use, CONs: you have to restart the server every time you change a file
+            config.http.customCompression(compressionStrategy());
             config.http.defaultContentType = "application/json"; // default content type for requests
             config.router.contextPath = "/api"; // base path for all routes
+            config.validation.register(LocalDate.class, LocalDate::parse); // lets ctx.queryParamAsClass read dates like 1990-12-31
+            config.jsonMapper(new CachingJsonMapper(Utils.getObjectMapper())); // ctx.json and ctx.bodyAsClass use the application's ObjectMapper
             config.bundledPlugins.enableRouteOverview("/routes"); // html overview of all registered routes at /routes for api documentation: https://javalin.io/news/2019/08/11/javalin-3.4.1-released.html
         });
+        lastWriteCookie.register(app); // read-your-writes per client, see ReadRouting
+        if (staticAssets != null)
+            staticAssets.addRoutes(app);
+        if (useVirtualThreads && pinningGuard == null)
+            pinningGuard = new PinningGuard(Duration.ofMillis(Long.parseLong(System.getProperty("pinning.threshold.ms", "20")))).start();
+        logger.info("Serving requests on {} threads", useVirtualThreads ? "virtual" : "platform");
         return appConfig;
     }
 
+    // Responses of at least COMPRESSION_MIN_BYTES are compressed with brotli or gzip, whichever the client accepts (brotli first).
+    // Set COMPRESSION to brotli, gzip or none to change that (or the compression and compression.min.bytes system properties)
+    private static CompressionStrategy compressionStrategy() {
+        String compression = System.getProperty("compression", Objects.requireNonNullElse(System.getenv("COMPRESSION"), "brotli,gzip"));
+        String minBytes = System.getProperty("compression.min.bytes", Objects.requireNonNullElse(System.getenv("COMPRESSION_MIN_BYTES"), "1500"));
+        CompressionStrategy strategy = new CompressionStrategy(
+                compression.contains("brotli") ? new Brotli(4) : null, // level 4 is about as fast as gzip 6 and still smaller
+                compression.contains("gzip") ? new Gzip(6) : null);
+        strategy.setDefaultMinSizeForCompression(Integer.parseInt(minBytes)); // smaller responses fit in one packet anyway
+        return strategy;
+    }
+
+    // Null unless the server runs on virtual threads
+    public static PinningGuard getPinningGuard() {
+        return pinningGuard;
+    }
+
     public ApplicationConfig setRoute(EndpointGroup route) {
         javalinConfig.router.apiBuilder(() -> {
             path("/", route);
@@ -57,6 +109,31 @@ public class ApplicationConfig {
     }
 
 
+    // Latency, status codes and requests in flight per route, served with the JVM and database metrics in the Prometheus format at /api/metrics
+    public ApplicationConfig setMetrics() {
+        routeMetrics = new RouteMetrics();
+        routeMetrics.register(app);
+        app.get("/metrics", new MetricsEndpoint(routeMetrics));
+        return appConfig;
+    }
+
+    // Null unless setMetrics has been called
+    public static RouteMetrics getRouteMetrics() {
+        return routeMetrics;
+    }
+
+    // A Server-Timing header with the database, serialization and handler time of every request. Switched on and off at runtime over JMX, see ServerTiming
+    public ApplicationConfig setServerTiming() {
+        serverTiming = new ServerTiming().registerMBean();
+        serverTiming.register(app);
+        return appConfig;
+    }
+
+    // Null unless setServerTiming has been called
+    public static ServerTiming getServerTiming() {
+        return serverTiming;
+    }
+
     public ApplicationConfig setCORS() {
         app.before(ctx -> {
             setCorsHeaders(ctx);
@@ -89,6 +166,10 @@ public class ApplicationConfig {
 
     public ApplicationConfig stopServer() {
         app.stop();
+        if (pinningGuard != null) {
+            pinningGuard.stop();
+            pinningGuard = null;
+        }
         return appConfig;
     }
 //    public ApplicationConfig setApiExceptionHandling() {
@@ -125,16 +206,23 @@ public class ApplicationConfig {
 
             ctx.json(on);
             ctx.status(statusCode);
+            if (serverTiming != null)
+                serverTiming.finish(ctx); // the after handlers are skipped when a ctx.future fails
+            lastWriteCookie.finish(ctx);
+            if (routeMetrics != null)
+                routeMetrics.record(ctx);
         });
         return appConfig;
     }
 
 
 
+    // Logs the header names of every request, in the dev profile only
     public ApplicationConfig beforeFilter() {
+        if (!Profile.isDev())
+            return appConfig;
         app.before(ctx -> {
-            String pathInfo = ctx.req().getPathInfo();
-            ctx.req().getHeaderNames().asIterator().forEachRemaining(el -> System.out.println(el));
+            ctx.req().getHeaderNames().asIterator().forEachRemaining(el -> logger.debug("Header: {}", el));
         });
         return appConfig;
     }
@@ -0,0 +1,96 @@
+package dk.ek.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import io.javalin.json.JsonMapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Purpose: Javalin's JsonMapper on top of one shared ObjectMapper, with an ObjectReader and ObjectWriter per type that are looked up once and then reused.
+ * Javalin's own JavalinJackson writes ctx.json through a pipe filled by another thread. Here the JSON is written to a byte array on the request thread,
+ * which is cheaper for the response sizes of this api (large results are streamed by the handlers themselves).
+ */
+public class CachingJsonMapper implements JsonMapper {
+    private final ObjectMapper objectMapper;
+    private final Map<Type, ObjectWriter> writers = new ConcurrentHashMap<>();
+    private final Map<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    public CachingJsonMapper(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public String toJsonString(Object obj, Type type) {
+        if (obj instanceof String string)
+            return string; // already JSON, as in JavalinJackson
+        try {
+            return writer(obj, type).writeValueAsString(obj);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public InputStream toJsonStream(Object obj, Type type) {
+        if (obj instanceof String string)
+            return new ByteArrayInputStream(string.getBytes(StandardCharsets.UTF_8));
+        try {
+            return new ByteArrayInputStream(writer(obj, type).writeValueAsBytes(obj));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Used by ctx.writeJsonStream: the elements are written as a JSON array while the stream is consumed
+    @Override
+    public void writeToOutputStream(Stream<?> stream, OutputStream outputStream) {
+        try (SequenceWriter sequenceWriter = objectMapper.writer().writeValuesAsArray(outputStream)) {
+            Iterator<?> elements = stream.iterator();
+            while (elements.hasNext())
+                sequenceWriter.write(elements.next());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public <T> T fromJsonString(String json, Type targetType) {
+        try {
+            return reader(targetType).readValue(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public <T> T fromJsonStream(InputStream json, Type targetType) {
+        try {
+            return reader(targetType).readValue(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Javalin passes the static type, which is Object for ctx.json(..). The writer is then chosen by the class of the value
+    private ObjectWriter writer(Object obj, Type type) {
+        Type key = type == Object.class ? obj.getClass() : type;
+        return writers.computeIfAbsent(key, t -> objectMapper.writerFor(objectMapper.getTypeFactory().constructType(t)));
+    }
+
+    private ObjectReader reader(Type type) {
+        return readers.computeIfAbsent(type, t -> objectMapper.readerFor(objectMapper.getTypeFactory().constructType(t)));
+    }
+}
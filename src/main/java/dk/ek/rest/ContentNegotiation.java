@@ -0,0 +1,124 @@
+package dk.ek.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
+import dk.ek.exceptions.ApiException;
+import dk.ek.utils.RequestTiming;
+import dk.ek.utils.Utils;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Purpose: Lets the person handlers read and write CBOR or Smile instead of JSON, for the service-to-service callers that ask for it.
+ * The response format follows the Accept header and the request format the Content-Type header. Anything else, or no header, is JSON as before.
+ * The binary mappers are configured like the JSON mapper (Utils.configure), so the same DTOs, dates and generated codecs are used.
+ */
+public class ContentNegotiation {
+
+    public enum Format {
+        JSON("application/json", Utils.getObjectMapper()),
+        CBOR("application/cbor", Utils.configure(new CBORMapper())),
+        SMILE("application/x-jackson-smile", Utils.configure(new SmileMapper()));
+
+        private final String mediaType;
+        private final ObjectMapper objectMapper;
+
+        Format(String mediaType, ObjectMapper objectMapper) {
+            this.mediaType = mediaType;
+            this.objectMapper = objectMapper;
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+
+        public ObjectMapper getObjectMapper() {
+            return objectMapper;
+        }
+
+        private static Format ofMediaType(String mediaType) {
+            for (Format format : values())
+                if (format.mediaType.equals(mediaType))
+                    return format;
+            return null;
+        }
+    }
+
+    private ContentNegotiation() { }
+
+    // The format with the highest q value in the Accept header. JSON when the header only has other types or wildcards
+    public static Format responseFormat(Context ctx) {
+        String accept = ctx.header(Header.ACCEPT);
+        if (accept == null || accept.isBlank())
+            return Format.JSON;
+        List<String[]> ranges = new ArrayList<>(); // media type and q value
+        for (String range : accept.split(",")) {
+            String[] parts = range.split(";");
+            String q = "1";
+            for (int i = 1; i < parts.length; i++)
+                if (parts[i].strip().startsWith("q="))
+                    q = parts[i].strip().substring(2);
+            ranges.add(new String[]{parts[0].strip().toLowerCase(Locale.ROOT), q});
+        }
+        ranges.sort(Comparator.comparingDouble((String[] range) -> parseQ(range[1])).reversed()); // stable, so equal q values keep their order
+        for (String[] range : ranges) {
+            Format format = Format.ofMediaType(range[0]);
+            if (format != null && parseQ(range[1]) > 0)
+                return format;
+        }
+        return Format.JSON;
+    }
+
+    public static Format requestFormat(Context ctx) {
+        String contentType = ctx.contentType();
+        if (contentType == null)
+            return Format.JSON;
+        Format format = Format.ofMediaType(contentType.split(";")[0].strip().toLowerCase(Locale.ROOT));
+        return format == null ? Format.JSON : format;
+    }
+
+    // Use instead of ctx.json(value). JSON still goes through ctx.json, i.e. Javalin's JsonMapper
+    public static Context write(Context ctx, Object value) {
+        ctx.header(Header.VARY, Header.ACCEPT); // the response depends on the Accept header, so caches must keep the formats apart
+        Format format = responseFormat(ctx);
+        RequestTiming timing = ServerTiming.of(ctx);
+        long start = timing == null ? 0 : System.nanoTime();
+        try {
+            if (format == Format.JSON)
+                return ctx.json(value); // CachingJsonMapper writes the JSON right away
+            return ctx.contentType(format.mediaType).result(format.objectMapper.writeValueAsBytes(value));
+        } catch (IOException e) {
+            throw new ApiException(500, "Could not write the response as " + format.mediaType);
+        } finally {
+            if (timing != null)
+                timing.addSerialize(System.nanoTime() - start);
+        }
+    }
+
+    // Use instead of ctx.bodyAsClass(type)
+    public static <T> T read(Context ctx, Class<T> type) {
+        Format format = requestFormat(ctx);
+        if (format == Format.JSON)
+            return ctx.bodyAsClass(type);
+        try {
+            return format.objectMapper.readValue(ctx.bodyAsBytes(), type);
+        } catch (IOException e) {
+            throw new ApiException(400, "Could not read the body as " + format.mediaType + ": " + e.getMessage());
+        }
+    }
+
+    private static double parseQ(String q) {
+        try {
+            return Double.parseDouble(q);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
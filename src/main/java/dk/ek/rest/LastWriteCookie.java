@@ -0,0 +1,62 @@
+package dk.ek.rest;
+
+import dk.ek.persistence.ReadRouting;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Cookie;
+import io.javalin.http.SameSite;
+
+/**
+ * Purpose: Keys the read-your-writes routing (see ReadRouting) by client instead of by server thread.
+ * A request that writes gets a last-write cookie with the time of the write, which lives as long as reads stick to the primary.
+ * Later requests of the client send it back, and their reads go to the primary until REPLICA_STICKY_MS after that write,
+ * whichever server instance or thread serves them. Clients without cookies can send the time in a Last-Write header instead.
+ */
+public class LastWriteCookie {
+    public static final String NAME = "last-write";
+    public static final String HEADER = "Last-Write";
+    private static final String CLIENT_ATTRIBUTE = "readRoutingClient";
+
+    private final int maxAgeSeconds = (int) Math.max(1, (ReadRouting.getStickyMillis() + 999) / 1000);
+
+    public void register(Javalin app) {
+        app.before(ctx -> {
+            ReadRouting.Client client = new ReadRouting.Client(lastWrite(ctx));
+            ReadRouting.Client.set(client);
+            ctx.attribute(CLIENT_ATTRIBUTE, client);
+        });
+        app.after(this::finish);
+    }
+
+    // The client is read from the ctx, not the thread: after a ctx.future the after handlers run on the DbExecutor thread that completed it.
+    // Sets the header once, later calls do nothing. Javalin skips the after handlers when a ctx.future fails, so the exception handler calls it as well
+    public void finish(Context ctx) {
+        ReadRouting.Client.set(null);
+        ReadRouting.Client client = ctx.attribute(CLIENT_ATTRIBUTE);
+        if (client == null)
+            return;
+        ctx.attribute(CLIENT_ATTRIBUTE, null);
+        if (!client.hasWrittenNow())
+            return;
+        String lastWrite = String.valueOf(client.getLastWriteMillis());
+        ctx.header(HEADER, lastWrite);
+        Cookie cookie = new Cookie(NAME, lastWrite, "/", maxAgeSeconds);
+        cookie.setHttpOnly(true);
+        cookie.setSameSite(SameSite.LAX);
+        ctx.cookie(cookie);
+    }
+
+    // 0 (no write we know of) when the client sent neither, or garbage
+    private static long lastWrite(Context ctx) {
+        String value = ctx.header(HEADER);
+        if (value == null)
+            value = ctx.cookie(NAME);
+        if (value == null)
+            return 0L;
+        try {
+            return Math.min(Long.parseLong(value.trim()), System.currentTimeMillis()); // a time in the future would pin the client to the primary
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+}
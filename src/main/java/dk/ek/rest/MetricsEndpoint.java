@@ -0,0 +1,185 @@
+package dk.ek.rest;
+
+import dk.ek.persistence.CacheMetrics;
+import dk.ek.persistence.ConnectionPoolMetrics;
+import dk.ek.persistence.DbExecutor;
+import dk.ek.persistence.HibernateConfig;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Purpose: Serves the metrics in the Prometheus text format (GET /api/metrics), for Prometheus to scrape.
+ * Per route: a latency histogram, the responses per status code and the requests in flight (see RouteMetrics).
+ * Besides those: JVM heap, garbage collection and threads, the connection pools, the second-level cache, the DbExecutor and, on virtual threads, the pinnings.
+ */
+public class MetricsEndpoint implements Handler {
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final RouteMetrics routeMetrics;
+
+    public MetricsEndpoint(RouteMetrics routeMetrics) {
+        this.routeMetrics = routeMetrics;
+    }
+
+    @Override
+    public void handle(@NotNull Context ctx) {
+        ctx.contentType(CONTENT_TYPE).result(scrape());
+    }
+
+    public String scrape() {
+        Writer out = new Writer();
+        writeRoutes(out);
+        writeJvm(out);
+        writePools(out, List.of(HibernateConfig.getPoolMetrics(), HibernateConfig.getReplicaPoolMetrics()));
+        writeCache(out);
+        writeDbExecutor(out);
+        PinningGuard pinningGuard = ApplicationConfig.getPinningGuard();
+        if (pinningGuard != null) {
+            out.type("virtual_thread_pinned_total", "counter", "Virtual threads pinned to their carrier longer than the threshold");
+            out.sample("virtual_thread_pinned_total", label("code", "any"), pinningGuard.getPinnedCount());
+            out.sample("virtual_thread_pinned_total", label("code", "ours"), pinningGuard.getPinnedInOurCodeCount());
+        }
+        return out.toString();
+    }
+
+    private void writeRoutes(Writer out) {
+        List<RouteMetrics.Route> routes = routeMetrics.getRoutes();
+        out.type("http_server_requests_seconds", "histogram", "Time from the first before handler to the last after handler, per route");
+        for (RouteMetrics.Route route : routes) {
+            String labels = routeLabels(route);
+            long[] buckets = route.getCumulativeBuckets();
+            for (int i = 0; i < buckets.length; i++)
+                out.sample("http_server_requests_seconds_bucket", labels + "," + label("le", RouteMetrics.bucketLabel(i)), buckets[i]);
+            out.sample("http_server_requests_seconds_sum", labels, route.getNanosTotal() / 1e9);
+            out.sample("http_server_requests_seconds_count", labels, route.getCount());
+        }
+        out.type("http_server_requests_total", "counter", "Responses per route and status code");
+        for (RouteMetrics.Route route : routes)
+            route.getStatusCounts().forEach((status, count) ->
+                    out.sample("http_server_requests_total", routeLabels(route) + "," + label("status", String.valueOf(status)), count));
+        out.type("http_server_requests_in_flight", "gauge", "Requests being handled per route");
+        for (RouteMetrics.Route route : routes)
+            if (!route.getPath().equals(RouteMetrics.UNMATCHED))
+                out.sample("http_server_requests_in_flight", routeLabels(route), route.getInFlight());
+    }
+
+    private static String routeLabels(RouteMetrics.Route route) {
+        return label("method", route.getMethod()) + "," + label("route", route.getPath());
+    }
+
+    private static void writeJvm(Writer out) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        MemoryUsage heap = memory.getHeapMemoryUsage();
+        MemoryUsage nonHeap = memory.getNonHeapMemoryUsage();
+        out.type("jvm_memory_used_bytes", "gauge", "Used memory");
+        out.sample("jvm_memory_used_bytes", label("area", "heap"), heap.getUsed());
+        out.sample("jvm_memory_used_bytes", label("area", "nonheap"), nonHeap.getUsed());
+        out.type("jvm_memory_committed_bytes", "gauge", "Memory committed by the operating system");
+        out.sample("jvm_memory_committed_bytes", label("area", "heap"), heap.getCommitted());
+        out.sample("jvm_memory_committed_bytes", label("area", "nonheap"), nonHeap.getCommitted());
+        out.type("jvm_memory_max_bytes", "gauge", "Maximum memory, -1 when undefined");
+        out.sample("jvm_memory_max_bytes", label("area", "heap"), heap.getMax());
+        out.type("jvm_gc_collections_total", "counter", "Garbage collections per collector");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            out.sample("jvm_gc_collections_total", label("gc", gc.getName()), gc.getCollectionCount());
+        out.type("jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection per collector");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            out.sample("jvm_gc_collection_seconds_total", label("gc", gc.getName()), gc.getCollectionTime() / 1e3);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        out.type("jvm_threads", "gauge", "Live platform threads, and how many of them are daemon threads");
+        out.sample("jvm_threads", label("state", "live"), threads.getThreadCount());
+        out.sample("jvm_threads", label("state", "daemon"), threads.getDaemonThreadCount());
+    }
+
+    // Pools that have not been created yet (e.g. the replica when there is none) have no name and are left out
+    private static void writePools(Writer out, List<ConnectionPoolMetrics> all) {
+        List<ConnectionPoolMetrics> pools = all.stream().filter(pool -> pool.getPoolName() != null).toList();
+        out.type("db_pool_connections", "gauge", "Connections in the pool by state");
+        for (ConnectionPoolMetrics pool : pools) {
+            String labels = label("pool", pool.getPoolName());
+            out.sample("db_pool_connections", labels + "," + label("state", "active"), pool.getActiveConnections());
+            out.sample("db_pool_connections", labels + "," + label("state", "idle"), pool.getIdleConnections());
+            out.sample("db_pool_connections", labels + "," + label("state", "max"), pool.getMaxConnections());
+        }
+        out.type("db_pool_pending_threads", "gauge", "Threads waiting for a connection");
+        for (ConnectionPoolMetrics pool : pools)
+            out.sample("db_pool_pending_threads", label("pool", pool.getPoolName()), pool.getPendingThreads());
+        out.type("db_pool_timeouts_total", "counter", "Connection requests that timed out");
+        for (ConnectionPoolMetrics pool : pools)
+            out.sample("db_pool_timeouts_total", label("pool", pool.getPoolName()), pool.getTimeouts());
+        out.type("db_pool_acquire_seconds", "histogram", "Time to get a connection from the pool");
+        for (ConnectionPoolMetrics pool : pools) {
+            String labels = label("pool", pool.getPoolName());
+            for (Map.Entry<Long, Long> bucket : pool.getAcquireHistogram().entrySet()) {
+                String le = bucket.getKey() < 0 ? "+Inf" : BigDecimal.valueOf(bucket.getKey()).movePointLeft(6).toPlainString();
+                out.sample("db_pool_acquire_seconds_bucket", labels + "," + label("le", le), bucket.getValue());
+            }
+            out.sample("db_pool_acquire_seconds_sum", labels, pool.getAcquireNanosTotal() / 1e9);
+            out.sample("db_pool_acquire_seconds_count", labels, pool.getAcquireCount());
+        }
+    }
+
+    private static void writeCache(Writer out) {
+        CacheMetrics cache = HibernateConfig.getCacheMetrics();
+        out.type("hibernate_cache_requests_total", "counter", "Second-level cache lookups per region and result");
+        for (CacheMetrics.RegionStatistics region : cache.getRegionStatistics()) {
+            out.sample("hibernate_cache_requests_total", label("region", region.getRegion()) + "," + label("result", "hit"), region.getHits());
+            out.sample("hibernate_cache_requests_total", label("region", region.getRegion()) + "," + label("result", "miss"), region.getMisses());
+        }
+        out.sample("hibernate_cache_requests_total", label("region", "query") + "," + label("result", "hit"), cache.getQueryCacheHitCount());
+        out.sample("hibernate_cache_requests_total", label("region", "query") + "," + label("result", "miss"), cache.getQueryCacheMissCount());
+    }
+
+    private static void writeDbExecutor(Writer out) {
+        DbExecutor executor = DbExecutor.getInstance();
+        out.type("db_executor_queue_depth", "gauge", "Database tasks waiting for a thread");
+        out.sample("db_executor_queue_depth", "", executor.getQueueDepth());
+        out.type("db_executor_active_threads", "gauge", "Database threads running a task");
+        out.sample("db_executor_active_threads", "", executor.getActiveCount());
+        out.type("db_executor_rejected_total", "counter", "Database tasks rejected because the queue was full");
+        out.sample("db_executor_rejected_total", "", executor.getRejectedCount());
+    }
+
+    private static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    private static class Writer {
+        private final StringBuilder text = new StringBuilder(8192);
+
+        private void type(String name, String type, String help) {
+            text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+
+        private void sample(String name, String labels, long value) {
+            start(name, labels).append(value).append('\n');
+        }
+
+        private void sample(String name, String labels, double value) {
+            start(name, labels).append(value).append('\n');
+        }
+
+        private StringBuilder start(String name, String labels) {
+            text.append(name);
+            if (!labels.isEmpty())
+                text.append('{').append(labels).append('}');
+            return text.append(' ');
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package dk.ek.rest;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Purpose: Detects virtual threads that are pinned to their carrier thread, e.g. by blocking JDBC calls inside a synchronized block.
+ * A pinned virtual thread holds on to one of the few carrier threads, so a handful of them can stall the whole server.
+ * Listens for the JFR event jdk.VirtualThreadPinned and logs the stack of every pinning that lasts longer than the threshold.
+ * Pinnings with a frame from our own packages (dk.) are counted separately, since those are the ones we can fix.
+ */
+public class PinningGuard {
+    private static final Logger logger = LoggerFactory.getLogger(PinningGuard.class);
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+    private static final String OUR_PACKAGES = "dk.";
+
+    private final Duration threshold;
+    private final LongAdder pinned = new LongAdder();
+    private final LongAdder pinnedInOurCode = new LongAdder();
+    private RecordingStream stream;
+
+    public PinningGuard(Duration threshold) {
+        this.threshold = threshold;
+    }
+
+    public synchronized PinningGuard start() {
+        if (stream == null) {
+            stream = new RecordingStream();
+            stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+            stream.onEvent(PINNED_EVENT, this::onPinned);
+            stream.startAsync();
+        }
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (stream != null) {
+            stream.close();
+            stream = null;
+        }
+    }
+
+    private void onPinned(RecordedEvent event) {
+        pinned.increment();
+        List<RecordedFrame> frames = event.getStackTrace() == null ? List.of() : event.getStackTrace().getFrames();
+        boolean ourCode = frames.stream().anyMatch(frame -> frame.isJavaFrame() && frame.getMethod().getType().getName().startsWith(OUR_PACKAGES));
+        if (ourCode)
+            pinnedInOurCode.increment();
+        String stack = frames.stream()
+                .limit(20)
+                .map(frame -> "\tat " + frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber())
+                .collect(Collectors.joining("\n"));
+        logger.warn("Virtual thread pinned for {} ms{}\n{}", event.getDuration().toMillis(), ourCode ? " in our code" : "", stack);
+    }
+
+    public long getPinnedCount() {
+        return pinned.sum();
+    }
+
+    public long getPinnedInOurCodeCount() {
+        return pinnedInOurCode.sum();
+    }
+}
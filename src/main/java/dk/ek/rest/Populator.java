@@ -8,6 +8,7 @@ import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
 
 import java.time.LocalDate;
+import java.util.List;
 
 /**
  * Purpose: To populate the database with users and roles
@@ -38,7 +39,8 @@ public class Populator {
 //        }
 //    }
 //
-    public void createPersonEntities(EntityManagerFactory emf){
+    // Replaces all persons with three known ones, and returns them
+    public List<Person> createPersonEntities(EntityManagerFactory emf){
         try (EntityManager em = emf.createEntityManager()) {
             em.getTransaction().begin();
             em.createQuery("DELETE FROM Person").executeUpdate();
@@ -52,6 +54,7 @@ public class Populator {
 
             System.out.println("Persons in DB: ");
             em.createQuery("SELECT p FROM Person p", Person.class).getResultList().forEach(System.out::println);
+            return List.of(p1, p2, p3);
         }
     }
 
@@ -39,9 +39,13 @@ public class RestRoutes {
 //          get("/", personEntityController.getAll(), Role.ANYONE);
           get("/", personEntityController.getAll());
           get("/resetdata", personEntityController.resetData());
+          get("/export", personEntityController.export());
+          get("/suggest", personEntityController.suggest());
           get("/{id}", personEntityController.getById());
 
           post("/", personEntityController.create());
+          post("/bulk", personEntityController.createAll());
+          post("/import", personEntityController.importPersons());
           put("/{id}", personEntityController.update());
           delete("/{id}", personEntityController.delete());
       });
@@ -0,0 +1,154 @@
+package dk.ek.rest;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Purpose: Latency, status codes and requests in flight per route, i.e. per method and path template (/person/{id}, not /person/42).
+ * Recording is lock-free: counters are LongAdders, and latencies are counted in power-of-two microsecond buckets as in ConnectionPoolMetrics.
+ * Requests that match no route (404s) are counted under the route "unmatched". See MetricsEndpoint for the Prometheus output.
+ */
+public class RouteMetrics {
+    // Upper bounds of the buckets in microseconds: 1, 2, 4, ... 2^25 (~33 seconds). The last bucket counts everything above.
+    public static final int BUCKETS = 27;
+    public static final String UNMATCHED = "unmatched";
+    private static final String START_ATTRIBUTE = "metrics.start";
+    private static final String ROUTE_ATTRIBUTE = "metrics.route";
+    private static final int MAX_STATUS = 600;
+
+    private final Map<HandlerType, Map<String, Route>> routes = new EnumMap<>(HandlerType.class);
+
+    public RouteMetrics() {
+        for (HandlerType method : HandlerType.values())
+            routes.put(method, new ConcurrentHashMap<>());
+    }
+
+    // Times every request from the first before handler to the last after handler.
+    // Javalin skips the after handlers when a ctx.future fails, so the exception handler must call record as well (see ApplicationConfig)
+    public void register(Javalin app) {
+        app.before(ctx -> ctx.attribute(START_ATTRIBUTE, System.nanoTime()));
+        app.beforeMatched(ctx -> {
+            Route route = route(ctx.method(), ctx.endpointHandlerPath());
+            route.inFlight.increment();
+            ctx.attribute(ROUTE_ATTRIBUTE, route);
+        });
+        app.after(this::record);
+    }
+
+    // Records the request once, later calls do nothing
+    public void record(Context ctx) {
+        Long start = ctx.attribute(START_ATTRIBUTE);
+        if (start == null)
+            return;
+        ctx.attribute(START_ATTRIBUTE, null);
+        Route route = ctx.attribute(ROUTE_ATTRIBUTE);
+        if (route == null)
+            route = route(ctx.method(), UNMATCHED);
+        else
+            route.inFlight.decrement();
+        route.record(System.nanoTime() - start, ctx.statusCode());
+    }
+
+    private Route route(HandlerType method, String path) {
+        Map<String, Route> byPath = routes.get(method);
+        Route route = byPath.get(path);
+        return route != null ? route : byPath.computeIfAbsent(path, p -> new Route(method.name(), p.replaceAll("/{2,}", "/"))); // setRoute nests every group under path("/")
+    }
+
+    public List<Route> getRoutes() {
+        List<Route> all = new ArrayList<>();
+        routes.values().stream().map(Map::values).forEach(all::addAll);
+        return all;
+    }
+
+    // The upper bound of bucket i in seconds, as Prometheus wants it in the le label. +Inf for the last bucket
+    public static String bucketLabel(int i) {
+        return i == BUCKETS - 1 ? "+Inf" : BigDecimal.valueOf(1L << i).movePointLeft(6).toPlainString();
+    }
+
+    public static class Route {
+        private final String method;
+        private final String path;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanosTotal = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(MAX_STATUS);
+
+        private Route(String method, String path) {
+            this.method = method;
+            this.path = path;
+            for (int i = 0; i < BUCKETS; i++)
+                buckets[i] = new LongAdder();
+        }
+
+        private void record(long nanos, int status) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+            int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            buckets[Math.min(bucket, BUCKETS - 1)].increment();
+            count.increment();
+            nanosTotal.add(nanos);
+            int index = status >= 0 && status < MAX_STATUS ? status : 0;
+            LongAdder counter = statuses.get(index);
+            if (counter == null) {
+                statuses.compareAndSet(index, null, new LongAdder());
+                counter = statuses.get(index);
+            }
+            counter.increment();
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getNanosTotal() {
+            return nanosTotal.sum();
+        }
+
+        public long getInFlight() {
+            return inFlight.sum();
+        }
+
+        // Cumulative counts, index i counts the requests that took at most 2^i microseconds
+        public long[] getCumulativeBuckets() {
+            long[] cumulative = new long[BUCKETS];
+            long sum = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                sum += buckets[i].sum();
+                cumulative[i] = sum;
+            }
+            return cumulative;
+        }
+
+        // Status code -> number of responses. Status 0 counts codes outside 0-599
+        public Map<Integer, Long> getStatusCounts() {
+            Map<Integer, Long> counts = new TreeMap<>();
+            for (int status = 0; status < MAX_STATUS; status++) {
+                LongAdder counter = statuses.get(status);
+                if (counter != null)
+                    counts.put(status, counter.sum());
+            }
+            return counts;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package dk.ek.rest;
+
+import dk.ek.utils.Profile;
+import dk.ek.utils.RequestTiming;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Purpose: Tells the client where the time of a request went, in a Server-Timing header: db (JDBC statements), serialize (writing the response body),
+ * handler (the rest of our code) and total. Browsers show it in the network tab of the developer tools.
+ * On by default except in the prod profile (SERVER_TIMING or the server.timing system property), and switchable at runtime over JMX (see ServerTimingMBean).
+ * A share of the timed requests (SERVER_TIMING_LOG_SAMPLE, default 0) is also logged as key="value" pairs on the access.timing logger, i.e. to the access log.
+ * When it is off, nothing is allocated or timed.
+ */
+public class ServerTiming implements ServerTimingMBean {
+    public static final String HEADER = "Server-Timing";
+    private static final String TIMING_ATTRIBUTE = "timing";
+    private static final String OBJECT_NAME = "dk.ek:type=ServerTiming";
+    private static final Logger logger = LoggerFactory.getLogger("access.timing");
+
+    private volatile boolean enabled;
+    private volatile double logSample;
+
+    public ServerTiming() {
+        this(Boolean.parseBoolean(System.getProperty("server.timing", Objects.requireNonNullElse(System.getenv("SERVER_TIMING"), String.valueOf(Profile.current() != Profile.PROD)))),
+                Double.parseDouble(System.getProperty("server.timing.log.sample", Objects.requireNonNullElse(System.getenv("SERVER_TIMING_LOG_SAMPLE"), "0"))));
+    }
+
+    public ServerTiming(boolean enabled, double logSample) {
+        this.enabled = enabled;
+        this.logSample = logSample;
+    }
+
+    public void register(Javalin app) {
+        app.before(ctx -> {
+            RequestTiming.set(null); // in case the thread's last request ended without finish, e.g. a failed ctx.future
+            if (!enabled)
+                return;
+            RequestTiming timing = new RequestTiming();
+            RequestTiming.set(timing);
+            ctx.attribute(TIMING_ATTRIBUTE, timing);
+        });
+        app.after(this::finish);
+    }
+
+    // Replaces an earlier registration, e.g. of a server that was stopped
+    public ServerTiming registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            logger.warn("Could not register {} over JMX", OBJECT_NAME, e);
+        }
+        return this;
+    }
+
+    // The timing of the request, null when it is not timed
+    public static RequestTiming of(Context ctx) {
+        return ctx.attribute(TIMING_ATTRIBUTE);
+    }
+
+    // Sets the header once, later calls do nothing. Javalin skips the after handlers when a ctx.future fails, so the exception handler calls it as well
+    public void finish(Context ctx) {
+        RequestTiming timing = of(ctx);
+        if (timing == null)
+            return;
+        ctx.attribute(TIMING_ATTRIBUTE, null);
+        RequestTiming.set(null);
+        long total = System.nanoTime() - timing.getStartNanos();
+        long db = timing.getDbNanos();
+        long serialize = timing.getSerializeNanos();
+        long handler = Math.max(0, total - db - serialize);
+        ctx.header(HEADER, "db;dur=" + millis(db) + ";desc=\"" + timing.getDbStatements() + " statements\", "
+                + "serialize;dur=" + millis(serialize) + ", "
+                + "handler;dur=" + millis(handler) + ", "
+                + "total;dur=" + millis(total));
+        if (logSample > 0 && ThreadLocalRandom.current().nextDouble() < logSample && logger.isInfoEnabled())
+            logger.atInfo()
+                    .addKeyValue("method", ctx.method())
+                    .addKeyValue("path", ctx.path())
+                    .addKeyValue("status", ctx.statusCode())
+                    .addKeyValue("db_ms", millis(db))
+                    .addKeyValue("db_statements", timing.getDbStatements())
+                    .addKeyValue("serialize_ms", millis(serialize))
+                    .addKeyValue("handler_ms", millis(handler))
+                    .addKeyValue("total_ms", millis(total))
+                    .log();
+    }
+
+    // Milliseconds with two decimals
+    private static double millis(long nanos) {
+        return Math.round(nanos / 10_000.0) / 100.0;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        logger.info("Server-Timing {}", enabled ? "on" : "off");
+    }
+
+    @Override
+    public double getLogSample() {
+        return logSample;
+    }
+
+    @Override
+    public void setLogSample(double logSample) {
+        this.logSample = logSample;
+    }
+}
@@ -0,0 +1,15 @@
+package dk.ek.rest;
+
+/**
+ * Purpose: The JMX interface of ServerTiming (dk.ek:type=ServerTiming), to switch it on and off in a running server, e.g. with jconsole.
+ */
+public interface ServerTimingMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    // The share of the timed requests, between 0 and 1, that is also logged on the access.timing logger
+    double getLogSample();
+
+    void setLogSample(double logSample);
+}
@@ -0,0 +1,121 @@
+package dk.ek.rest;
+
+import dk.ek.utils.StaticAssetCompressor;
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import org.eclipse.jetty.http.MimeTypes;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Purpose: Serves the static files that StaticAssetCompressor precompressed at build time, from memory.
+ * The client gets the brotli or gzip version when it accepts it, with a strong ETag (the SHA-256 of the file) so unchanged files are answered with 304.
+ * HTML is revalidated on every use (Cache-Control: no-cache), the other files are cached by the client for a year.
+ * When the build step has not run (e.g. started from the IDE without mvn package) load returns null, and Javalin's static file handler is used instead.
+ */
+public class StaticAssets {
+    private static final String HTML_CACHE_CONTROL = "no-cache";
+    private static final String ASSET_CACHE_CONTROL = "public, max-age=31536000";
+
+    private final Map<String, Asset> assets;
+
+    private StaticAssets(Map<String, Asset> assets) {
+        this.assets = assets;
+    }
+
+    // directory is a folder on the classpath, e.g. /public
+    public static StaticAssets load(String directory) {
+        InputStream manifest = StaticAssets.class.getResourceAsStream(directory + ".sha256");
+        if (manifest == null)
+            return null;
+        Map<String, Asset> assets = new LinkedHashMap<>();
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(manifest, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                if (line.isBlank())
+                    continue;
+                String sha256 = line.substring(0, line.indexOf(' '));
+                String path = "/" + line.substring(line.indexOf(' ') + 2);
+                byte[] identity = read(directory + path);
+                if (identity != null) // the manifest is from an earlier build
+                    assets.put(path, new Asset(sha256, MimeTypes.getDefaultMimeByExtension(path), identity,
+                            read(directory + path + StaticAssetCompressor.BROTLI), read(directory + path + StaticAssetCompressor.GZIP)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new StaticAssets(assets);
+    }
+
+    // A GET route per file. index.html is also served for its folder, as Javalin's static file handler does
+    public void addRoutes(Javalin app) {
+        assets.forEach((path, asset) -> {
+            app.get(path, ctx -> asset.serve(ctx));
+            if (path.endsWith("/index.html"))
+                app.get(path.substring(0, path.length() - "index.html".length()), ctx -> asset.serve(ctx));
+        });
+    }
+
+    private static byte[] read(String resource) throws IOException {
+        try (InputStream in = StaticAssets.class.getResourceAsStream(resource)) {
+            return in == null ? null : in.readAllBytes();
+        }
+    }
+
+    private static class Asset {
+        private final String sha256;
+        private final String contentType;
+        private final byte[] identity;
+        private final byte[] brotli;
+        private final byte[] gzip;
+
+        private Asset(String sha256, String contentType, byte[] identity, byte[] brotli, byte[] gzip) {
+            this.sha256 = sha256;
+            this.contentType = contentType == null ? "application/octet-stream" : contentType;
+            this.identity = identity;
+            this.brotli = brotli;
+            this.gzip = gzip;
+        }
+
+        private void serve(Context ctx) {
+            String acceptEncoding = ctx.header(Header.ACCEPT_ENCODING);
+            String encoding = brotli != null && accepts(acceptEncoding, "br") ? "br"
+                    : gzip != null && accepts(acceptEncoding, "gzip") ? "gzip"
+                    : null;
+            String etag = "\"" + sha256 + (encoding == null ? "" : "-" + encoding) + "\""; // strong, so one per encoding
+            ctx.header(Header.ETAG, etag)
+                    .header(Header.VARY, Header.ACCEPT_ENCODING)
+                    .header(Header.CACHE_CONTROL, contentType.startsWith("text/html") ? HTML_CACHE_CONTROL : ASSET_CACHE_CONTROL);
+            String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
+            if (ifNoneMatch != null && (ifNoneMatch.strip().equals("*") || ifNoneMatch.contains(etag))) {
+                ctx.status(HttpStatus.NOT_MODIFIED);
+                return;
+            }
+            if (encoding != null)
+                ctx.header(Header.CONTENT_ENCODING, encoding); // Javalin does not compress a response that already has a Content-Encoding
+            ctx.contentType(contentType).result(encoding == null ? identity : encoding.equals("br") ? brotli : gzip);
+        }
+
+        // True when the Accept-Encoding header lists the encoding without q=0
+        private static boolean accepts(String acceptEncoding, String encoding) {
+            if (acceptEncoding == null)
+                return false;
+            for (String coding : acceptEncoding.toLowerCase(Locale.ROOT).split(",")) {
+                String[] parts = coding.split(";");
+                if (parts[0].strip().equals(encoding))
+                    return parts.length == 1 || !parts[1].replace(" ", "").matches("q=0(\\.0*)?");
+            }
+            return false;
+        }
+    }
+}
@@ -2,28 +2,34 @@ package dk.ek.rest.controllers;
 
 import dk.ek.dtos.SimplePersonDTO;
 import dk.ek.exceptions.ApiException;
+import dk.ek.persistence.PersonStore;
+import dk.ek.rest.ContentNegotiation;
 import io.javalin.http.Handler;
 import io.javalin.http.HttpStatus;
 import io.javalin.validation.BodyValidator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.time.LocalDate;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 /**
  * Purpose: To demonstrate rest api with Javalin and no database.
  * Author: Thomas Hartmann
  */
 public class PersonController implements IController {
-    static Map<UUID, SimplePersonDTO> persons = new HashMap(Map.of(
-             UUID.randomUUID(), new SimplePersonDTO("Anders", "Henningsen", "hans@mail.com", LocalDate.of(1966, 1, 31), SimplePersonDTO.JobTitle.TEACHER)
-            , UUID.randomUUID(), new SimplePersonDTO("Bente", "Henningsen", "grethe@mail.com", LocalDate.of(1976, 12, 31), SimplePersonDTO.JobTitle.TEACHER)
-            , UUID.randomUUID(), new SimplePersonDTO("Carl", "Frederiksen", "jens@mail.com", LocalDate.of(1986, 2, 9), SimplePersonDTO.JobTitle.STUDENT)
-            , UUID.randomUUID(), new SimplePersonDTO("Donna", "Frederiksen", "jorgen@mail.com", LocalDate.of(1996, 12, 22), SimplePersonDTO.JobTitle.STUDENT)
-            , UUID.randomUUID(), new SimplePersonDTO("Erik", "Juhl", "jesper@mail.com", LocalDate.of(2006, 2, 23), SimplePersonDTO.JobTitle.ADMIN)
-            , UUID.randomUUID(), new SimplePersonDTO("Frida", "Isaaksen", "jj@mail.com", LocalDate.of(2016, 12, 30), SimplePersonDTO.JobTitle.ADMIN)
-    ));
+    private static final Logger logger = LoggerFactory.getLogger(PersonController.class);
+    private static final PersonStore persons = new PersonStore(); // shared by all instances, like the database is
+    static {
+        persons.create(new SimplePersonDTO("Anders", "Henningsen", "hans@mail.com", LocalDate.of(1966, 1, 31), SimplePersonDTO.JobTitle.TEACHER));
+        persons.create(new SimplePersonDTO("Bente", "Henningsen", "grethe@mail.com", LocalDate.of(1976, 12, 31), SimplePersonDTO.JobTitle.TEACHER));
+        persons.create(new SimplePersonDTO("Carl", "Frederiksen", "jens@mail.com", LocalDate.of(1986, 2, 9), SimplePersonDTO.JobTitle.STUDENT));
+        persons.create(new SimplePersonDTO("Donna", "Frederiksen", "jorgen@mail.com", LocalDate.of(1996, 12, 22), SimplePersonDTO.JobTitle.STUDENT));
+        persons.create(new SimplePersonDTO("Erik", "Juhl", "jesper@mail.com", LocalDate.of(2006, 2, 23), SimplePersonDTO.JobTitle.ADMIN));
+        persons.create(new SimplePersonDTO("Frida", "Isaaksen", "jj@mail.com", LocalDate.of(2016, 12, 30), SimplePersonDTO.JobTitle.ADMIN));
+    }
 
     @Override
     public Handler getAll() {
@@ -32,7 +38,7 @@ public class PersonController implements IController {
             if (isExceptionTest) {
                 throw new ApiException(500, "Something went wrong in the getAll method in the PersonController");
             }
-            ctx.json(persons);
+            ContentNegotiation.write(ctx, persons.asMap());
         };
     }
 
@@ -42,10 +48,11 @@ public class PersonController implements IController {
             ctx.pathParamAsClass("id", String.class)
             .check(id -> id.length() == 36, "Id must be UUID with 36 characters"); // Use a path param validator
             UUID id = UUID.fromString(ctx.pathParam("id"));
-            System.out.println("ID: "+id);
-            if(!persons.containsKey(id))
+            logger.debug("ID: {}", id);
+            SimplePersonDTO person = persons.get(id);
+            if (person == null)
                 throw new ApiException(404, "No person with that id");
-            ctx.json(persons.get(id));
+            ContentNegotiation.write(ctx, person);
         };
     }
 
@@ -56,11 +63,8 @@ public class PersonController implements IController {
 //            validator.check(person -> person.getBirthday().isBefore(), "Age must be greater than 0 and less than 120");
             validator.check(person -> person.getFirstName().length() > 0, "Name must be longer than 0");
 //            validator.check(person -> person.getBirthday())
-            SimplePersonDTO person = ctx.bodyAsClass(SimplePersonDTO.class);
-            UUID id = UUID.randomUUID();
-            persons.put(id, person);
-            person.setId(id);
-            ctx.json(person).status(HttpStatus.CREATED);
+            SimplePersonDTO person = ContentNegotiation.read(ctx, SimplePersonDTO.class);
+            ContentNegotiation.write(ctx, store(() -> persons.create(person))).status(HttpStatus.CREATED);
         };
     }
 
@@ -71,9 +75,8 @@ public class PersonController implements IController {
                     .pathParamAsClass("id", String.class) // returns a validator
                     .check(id -> id.length() == 36, "Id must be UUID with 36 characters"); // Use a path param validator
             UUID id = UUID.fromString(ctx.pathParam("id"));
-            SimplePersonDTO person = ctx.bodyAsClass(SimplePersonDTO.class);
-            this.persons.put(id, person);
-            ctx.json(person);
+            SimplePersonDTO person = ContentNegotiation.read(ctx, SimplePersonDTO.class);
+            ContentNegotiation.write(ctx, store(() -> persons.update(id, person)));
         };
     }
 
@@ -81,33 +84,36 @@ public class PersonController implements IController {
     public Handler delete() {
         return ctx -> {
             UUID id = UUID.fromString(ctx.pathParam("id"));
-            if(! persons.containsKey(id)){
+            SimplePersonDTO person = persons.delete(id);
+            if (person == null) {
                 ctx.status(404);
                 ctx.attribute("msg", String.format("No person with id: {id}", id));
                 return;
             }
-            SimplePersonDTO person = this.persons.remove(id);
-            ctx.json(person);
+            ContentNegotiation.write(ctx, person);
         };
     }
 
     public Handler getByEmail() {
         return ctx -> {
-            try {
-                SimplePersonDTO found = persons
-                        .values()
-                        .stream()
-                        .filter((person) -> person.getEmail().equals(ctx.pathParam("email")))
-                        .toList()
-                        .get(0);
-                ctx.json(found).status(HttpStatus.OK);
-            } catch (IndexOutOfBoundsException e) {
-                throw new ApiException(404, String.format("No person with name: %s", ctx.pathParam("name")));
-            }
+            SimplePersonDTO found = persons.getByEmail(ctx.pathParam("email"));
+            if (found == null)
+                throw new ApiException(404, String.format("No person with email: %s", ctx.pathParam("email")));
+            ContentNegotiation.write(ctx, found).status(HttpStatus.OK);
         };
     }
 
+    // A person with an email that another person has is a conflict
+    private static SimplePersonDTO store(Supplier<SimplePersonDTO> write) {
+        try {
+            return write.get();
+        } catch (IllegalStateException e) {
+            throw new ApiException(409, e.getMessage());
+        }
+    }
+
+        // A read-only view of the persons
         public static Map<UUID, SimplePersonDTO> getCollection(){
-            return persons;
+            return persons.asMap();
         }
 }
@@ -1,17 +1,48 @@
 package dk.ek.rest.controllers;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.ek.dtos.ImportResultDTO;
 import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.DbExecutor;
+import dk.ek.persistence.PersonSuggestIndex;
+import dk.ek.persistence.daos.AsyncPersonDAO;
+import dk.ek.persistence.daos.PersonCopyDAO;
 import dk.ek.persistence.daos.PersonDAO;
+import dk.ek.persistence.daos.PersonFields;
+import dk.ek.persistence.daos.PersonFilter;
 import dk.ek.persistence.HibernateConfig;
 import dk.ek.exceptions.ApiException;
 import dk.ek.persistence.model.*;
+import dk.ek.rest.ContentNegotiation;
 import dk.ek.rest.Populator;
+import dk.ek.utils.PersonImportReader;
+import dk.ek.utils.Utils;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
 import io.javalin.http.Handler;
 import io.javalin.http.HttpStatus;
-import io.javalin.validation.BodyValidator;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityNotFoundException;
 import jakarta.persistence.NoResultException;
+import jakarta.persistence.OptimisticLockException;
 import okhttp3.Address;
+import org.hibernate.StaleObjectStateException;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.exception.JDBCConnectionException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Purpose: To demonstrate rest api with Javalin and a database.
@@ -21,6 +52,21 @@ public class PersonEntityController implements IController {
 
     private static PersonEntityController instance;
     private static PersonDAO personDAO;
+    private static PersonCopyDAO personCopyDAO;
+    private static AsyncPersonDAO asyncPersonDAO; // single person reads and writes run on the DbExecutor, so the server threads don't wait for the database
+    private static final ObjectMapper objectMapper = Utils.getObjectMapper();
+    private static final int BULK_TRANSACTION_SIZE = 5000; // persons inserted per transaction by the bulk endpoint
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000; // hard limit, no matter what the client asks for
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final int STREAM_FETCH_SIZE = 1000;
+    private static final List<String> SEARCH_PARAMS = List.of("lastName", "bornAfter", "bornBefore", "q", "sort");
+    private static final List<String> UNSEARCHABLE_PARAMS = List.of("firstName", "email", "birthDate", "version"); // columns without an index for searching
+    private static final int MAX_SEARCH_OFFSET = 10_000; // deeper pages make the database read and throw away offset rows
+    private static final int MAX_IMPORT_ERRORS = 1000; // row errors listed in the import response
+    private static final int MAX_SUGGESTIONS = 50;
+    private static final PersonSuggestIndex suggestIndex = new PersonSuggestIndex(); // type-ahead over names and emails, kept in memory
+    private static EntityManagerFactory suggestIndexSource; // the database the suggest index was read from
 
     private PersonEntityController() { }
 
@@ -29,69 +75,314 @@ public class PersonEntityController implements IController {
             instance = new PersonEntityController();
         }
         // Everytime we request an instance, we get a new EMF, so we can get the proper EMF for test or prod
-        personDAO = new PersonDAO(HibernateConfig.getEntityManagerFactory());
+        EntityManagerFactory emf = HibernateConfig.getEntityManagerFactory();
+        personDAO = new PersonDAO(emf, HibernateConfig.getReadOnlyEntityManagerFactory());
+        personCopyDAO = new PersonCopyDAO(emf, HibernateConfig.getReadOnlyEntityManagerFactory());
+        asyncPersonDAO = new AsyncPersonDAO(personDAO, DbExecutor.getInstance());
+        if (suggestIndexSource != emf) { // read once per database, at startup. From then on the writes keep it up to date
+            suggestIndexSource = emf;
+            rebuildSuggestIndex();
+        }
         return instance;
     }
 
+    // GET /person?after=<id>&limit=<n> returns one page ordered by id. The id to use as 'after' for the next page is sent in the X-Next-Cursor header (absent on the last page)
+    // GET /person?stream=true returns all persons, streamed to the client while they are read from the database
+    // GET /person?lastName=..&bornAfter=..&bornBefore=..&q=..&sort=..&offset=..&limit=.. searches, see PersonFilter.validateSearch() for the combinations that are allowed
+    // Pages, searches and GET /person/{id} take ?fields=firstName,email,.. to get only those fields, see PersonFields
     @Override
     public Handler getAll() {
         return ctx -> {
-            ctx.status(HttpStatus.OK).json(PersonDTO.getEntities(personDAO.getAll()));
+            if (ctx.queryParamAsClass("stream", Boolean.class).getOrDefault(false)) {
+                streamAll(ctx);
+                return;
+            }
+            if (SEARCH_PARAMS.stream().anyMatch(param -> ctx.queryParam(param) != null)
+                    || UNSEARCHABLE_PARAMS.stream().anyMatch(param -> ctx.queryParam(param) != null)) {
+                search(ctx);
+                return;
+            }
+            Long after = ctx.queryParamAsClass("after", Long.class)
+                    .check(id -> id >= 0, "after must be a positive id")
+                    .getOrDefault(0L);
+            int limit = ctx.queryParamAsClass("limit", Integer.class)
+                    .check(size -> size > 0 && size <= MAX_PAGE_SIZE, "limit must be between 1 and " + MAX_PAGE_SIZE)
+                    .getOrDefault(DEFAULT_PAGE_SIZE);
+            PersonFields fields = fields(ctx);
+            if (fields != null) {
+                ctx.future(() -> mapErrors(asyncPersonDAO.getPage(after, limit, fields)
+                        .thenAccept(page -> {
+                            if (page.size() == limit)
+                                ctx.header(NEXT_CURSOR_HEADER, String.valueOf(page.get(page.size() - 1).get("id")));
+                            ContentNegotiation.write(ctx.status(HttpStatus.OK), page);
+                        })));
+                return;
+            }
+            ctx.future(() -> mapErrors(asyncPersonDAO.getDTOPage(after, limit)
+                    .thenAccept(page -> {
+                        if (page.size() == limit)
+                            ctx.header(NEXT_CURSOR_HEADER, String.valueOf(page.get(page.size() - 1).getId()));
+                        ContentNegotiation.write(ctx.status(HttpStatus.OK), page);
+                    })));
+        };
+    }
+
+    // ?fields=firstName,email selects only those fields (and id). Null fields are left out of the response. null when all fields are wanted
+    private static PersonFields fields(Context ctx) {
+        String fields = ctx.queryParam("fields");
+        if (fields == null)
+            return null;
+        try {
+            return PersonFields.of(fields);
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, e.getMessage());
+        }
+    }
+
+    private void search(Context ctx) {
+        UNSEARCHABLE_PARAMS.stream().filter(param -> ctx.queryParam(param) != null).findFirst().ifPresent(param -> {
+            throw new ApiException(400, param + " is not indexed and can not be searched, use one of " + SEARCH_PARAMS);
+        });
+        if (ctx.queryParam("after") != null)
+            throw new ApiException(400, "Use offset, not after, to page through search results");
+        PersonFilter filter = PersonFilter.builder()
+                .lastName(ctx.queryParam("lastName"))
+                .bornAfter(ctx.queryParamAsClass("bornAfter", LocalDate.class).allowNullable().get())
+                .bornBefore(ctx.queryParamAsClass("bornBefore", LocalDate.class).allowNullable().get())
+                .q(ctx.queryParam("q"))
+                .sort(ctx.queryParam("sort"))
+                .build();
+        try {
+            filter.validateSearch();
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(400, e.getMessage());
+        }
+        int offset = ctx.queryParamAsClass("offset", Integer.class)
+                .check(skip -> skip >= 0 && skip <= MAX_SEARCH_OFFSET, "offset must be between 0 and " + MAX_SEARCH_OFFSET)
+                .getOrDefault(0);
+        int limit = ctx.queryParamAsClass("limit", Integer.class)
+                .check(size -> size > 0 && size <= MAX_PAGE_SIZE, "limit must be between 1 and " + MAX_PAGE_SIZE)
+                .getOrDefault(DEFAULT_PAGE_SIZE);
+        PersonFields fields = fields(ctx);
+        ctx.future(() -> mapErrors((fields == null ? asyncPersonDAO.search(filter, offset, limit) : asyncPersonDAO.search(filter, fields, offset, limit))
+                .thenAccept(persons -> ContentNegotiation.write(ctx.status(HttpStatus.OK), persons))));
+    }
+
+    // GET /person/suggest?prefix=..&limit=.. returns the persons whose first name, last name, full name or email starts with the prefix (case and accents are ignored).
+    // Answered from memory, so it can be called on every keystroke. The persons only have id, names and email
+    public Handler suggest() {
+        return ctx -> {
+            String prefix = ctx.queryParamAsClass("prefix", String.class)
+                    .check(value -> !value.isBlank(), "prefix must not be empty")
+                    .get();
+            int limit = ctx.queryParamAsClass("limit", Integer.class)
+                    .check(size -> size > 0 && size <= MAX_SUGGESTIONS, "limit must be between 1 and " + MAX_SUGGESTIONS)
+                    .getOrDefault(10);
+            ContentNegotiation.write(ctx.status(HttpStatus.OK), suggestIndex.suggest(prefix, limit));
         };
     }
 
+    private static void rebuildSuggestIndex() {
+        suggestIndex.rebuild(consumer -> personDAO.scrollAll(STREAM_FETCH_SIZE, person -> consumer.accept(new PersonDTO(person))));
+    }
+
+    private void streamAll(Context ctx) throws IOException {
+        ctx.status(HttpStatus.OK).contentType(ContentType.APPLICATION_JSON);
+        try (JsonGenerator generator = objectMapper.createGenerator(ctx.outputStream())) {
+            generator.writeStartArray();
+            personDAO.scrollAll(STREAM_FETCH_SIZE, person -> {
+                try {
+                    generator.writeObject(new PersonDTO(person));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // the client went away, stop reading from the database
+                }
+            });
+            generator.writeEndArray();
+        }
+    }
+
     @Override
     public Handler getById() {
         return ctx -> {
             Long id = Long.parseLong(ctx.pathParam("id"));
-            try {
-                Person p = personDAO.findById(id);
-                ctx.status(HttpStatus.OK).json(new PersonDTO(p));
-            } catch(NoResultException ex){
-                throw new ApiException(404, "No person with id: " + id);
-            }
+            PersonFields fields = fields(ctx);
+            ctx.future(() -> mapErrors((fields == null ? asyncPersonDAO.findDTOById(id) : asyncPersonDAO.findById(id, fields))
+                    .thenAccept(person -> ContentNegotiation.write(ctx.status(HttpStatus.OK), person)), "No person with id: " + id));
         };
     }
 
     @Override
     public Handler create() {
         return ctx -> {
-            BodyValidator<PersonDTO> validator = ctx.bodyValidator(PersonDTO.class);
-//            validator.check(person -> person.getAge() > 0 && person.getAge() < 120, "Age must be greater than 0 and less than 120");
-            PersonDTO person = ctx.bodyAsClass(PersonDTO.class);
-            Person created = personDAO.create(person.toEntity());
-            ctx.json(new PersonDTO(created)).status(HttpStatus.CREATED);
+            PersonDTO person = ContentNegotiation.read(ctx, PersonDTO.class);
+            ctx.future(() -> mapErrors(asyncPersonDAO.create(person.toEntity())
+                    .thenAccept(created -> {
+                        PersonDTO dto = new PersonDTO(created);
+                        suggestIndex.put(dto);
+                        ContentNegotiation.write(ctx, dto).status(HttpStatus.CREATED);
+                    })));
         };
     }
 
+    // Reads the JSON array of persons as a stream and stores them BULK_TRANSACTION_SIZE at a time, so the whole upload is never held in memory
+    public Handler createAll() {
+        return ctx -> {
+            int created = 0;
+            List<Person> chunk = new ArrayList<>(BULK_TRANSACTION_SIZE);
+            try (MappingIterator<PersonDTO> persons = objectMapper.readerFor(PersonDTO.class).readValues(ctx.bodyInputStream())) {
+                while (persons.hasNext()) {
+                    chunk.add(persons.next().toEntity());
+                    if (chunk.size() == BULK_TRANSACTION_SIZE) {
+                        created += createAll(chunk);
+                        chunk.clear();
+                    }
+                }
+                if (!chunk.isEmpty())
+                    created += createAll(chunk);
+            } catch (IOException | RuntimeException e) {
+                throw new ApiException(400, "Bulk create stopped after " + created + " persons were created: " + e.getMessage());
+            }
+            ctx.status(HttpStatus.CREATED).json(objectMapper.createObjectNode().put("created", created));
+        };
+    }
+
+    private static int createAll(List<Person> persons) {
+        int created = personDAO.createAll(persons);
+        persons.forEach(person -> suggestIndex.put(new PersonDTO(person)));
+        return created;
+    }
+
+    // POST /person/import with a CSV (Content-Type: text/csv) or NDJSON (Content-Type: application/x-ndjson) body.
+    // The rows are validated and copied into the database while the upload is read. Rows that fail are reported, the rest are imported
+    public Handler importPersons() {
+        return ctx -> {
+            PersonImportReader rows;
+            try {
+                rows = new PersonImportReader(ctx.bodyInputStream(), PersonImportReader.formatOf(ctx.contentType()), objectMapper);
+            } catch (IllegalArgumentException e) {
+                throw new ApiException(400, e.getMessage());
+            }
+            try {
+                ImportResultDTO result = importPersons(rows);
+                ctx.status(HttpStatus.OK).json(result);
+            } catch (UncheckedIOException e) {
+                throw new ApiException(400, "Import failed, nothing was imported: " + e.getMessage());
+            }
+        };
+    }
+
+    // The imported persons go into the suggest index as they are inserted. When the import fails they are rolled back, and so is the index (the rare slow path)
+    private static ImportResultDTO importPersons(PersonImportReader rows) {
+        boolean[] indexed = {false};
+        try {
+            return personCopyDAO.importPersons(rows, MAX_IMPORT_ERRORS, person -> {
+                indexed[0] = true;
+                suggestIndex.put(person);
+            });
+        } catch (RuntimeException e) {
+            if (indexed[0])
+                rebuildSuggestIndex();
+            throw e;
+        }
+    }
+
+    // GET /person/export?format=csv|ndjson&gzip=true streams the persons straight from the database, ordered by id.
+    // Filters: since=<id> (persons created after that id), firstName, lastName, email, bornAfter and bornBefore (yyyy-mm-dd)
+    public Handler export() {
+        return ctx -> {
+            PersonCopyDAO.ExportFormat format;
+            try {
+                format = PersonCopyDAO.ExportFormat.valueOf(ctx.queryParamAsClass("format", String.class).getOrDefault("csv").toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new ApiException(400, "format must be csv or ndjson");
+            }
+            PersonFilter filter = PersonFilter.builder()
+                    .since(ctx.queryParamAsClass("since", Long.class).allowNullable().get())
+                    .firstName(ctx.queryParam("firstName"))
+                    .lastName(ctx.queryParam("lastName"))
+                    .email(ctx.queryParam("email"))
+                    .bornAfter(ctx.queryParamAsClass("bornAfter", LocalDate.class).allowNullable().get())
+                    .bornBefore(ctx.queryParamAsClass("bornBefore", LocalDate.class).allowNullable().get())
+                    .build();
+            boolean gzip = ctx.queryParamAsClass("gzip", Boolean.class).getOrDefault(false);
+
+            String fileName = format == PersonCopyDAO.ExportFormat.CSV ? "persons.csv" : "persons.ndjson";
+            ctx.status(HttpStatus.OK)
+                    .contentType(format == PersonCopyDAO.ExportFormat.CSV ? "text/csv; charset=utf-8" : "application/x-ndjson")
+                    .header("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+            if (gzip)
+                ctx.header("Content-Encoding", "gzip"); // Javalin does not compress a response that already has a Content-Encoding
+            try (OutputStream out = gzip ? new GZIPOutputStream(ctx.outputStream(), 64 * 1024) : ctx.outputStream()) {
+                personCopyDAO.export(out, format, filter);
+            }
+        };
+    }
+
+    // The version in the body (as read with GET) makes the update conditional: 409 if the person was changed in the meantime
     @Override
     public Handler update() {
         return ctx -> {
             Long id = (Long.parseLong(ctx.pathParam("id")));
-            PersonDTO person = ctx.bodyAsClass(PersonDTO.class);
+            PersonDTO person = ContentNegotiation.read(ctx, PersonDTO.class);
             person.setId(id);
-            personDAO.update(person.toEntity());
-            ctx.json(person);
+            ctx.future(() -> mapErrors(asyncPersonDAO.update(person.toEntity())
+                    .thenAccept(updated -> {
+                        PersonDTO dto = new PersonDTO(updated);
+                        suggestIndex.put(dto);
+                        ContentNegotiation.write(ctx, dto);
+                    })));
         };
     }
 
+    // DELETE /person/{id}?version=<n> only deletes the person if it still has that version
     @Override
     public Handler delete() {
         return ctx -> {
-            String id = ctx.pathParam("id");
-            Person found = personDAO.findById(Long.parseLong(id));
-            if(found == null)
-                throw new ApiException(404, "No person with that id");
-            PersonDTO person = new PersonDTO(found);
-            personDAO.delete(person.toEntity().getId());
-            ctx.json(person);
+            Long id = Long.parseLong(ctx.pathParam("id"));
+            Integer version = ctx.queryParamAsClass("version", Integer.class).allowNullable().get();
+            ctx.future(() -> mapErrors(asyncPersonDAO.delete(id, version)
+                    .thenAccept(deleted -> {
+                        suggestIndex.remove(id, deleted.getVersion()); // the callbacks of racing writes run in any order, the versions sort them out
+                        ContentNegotiation.write(ctx, new PersonDTO(deleted));
+                    })));
         };
     }
+
+    // Turns the exceptions from the DAO into the status codes of the synchronous handlers. A full DbExecutor queue answers 503, so clients back off instead of piling up
+    private static <T> CompletableFuture<T> mapErrors(CompletableFuture<T> future) {
+        return mapErrors(future, null);
+    }
+
+    private static <T> CompletableFuture<T> mapErrors(CompletableFuture<T> future, String notFound) {
+        return future.exceptionally(e -> {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            String notFoundMessage = notFound != null ? notFound : cause.getMessage();
+            if (cause instanceof RejectedExecutionException || causeOf(cause, JDBCConnectionException.class) != null) // no connection from the pool in time counts as busy too
+                throw new ApiException(503, "Server is busy, try again later");
+            if (cause instanceof NoResultException || cause instanceof EntityNotFoundException)
+                throw new ApiException(404, notFoundMessage);
+            if (cause instanceof OptimisticLockException || cause instanceof StaleObjectStateException)
+                throw new ApiException(409, cause.getMessage());
+            ConstraintViolationException violation = causeOf(cause, ConstraintViolationException.class);
+            if (violation != null)
+                throw new ApiException(409, "Conflicts with an existing person (" + violation.getConstraintName() + ")");
+            throw e instanceof CompletionException completion ? completion : new CompletionException(cause);
+        });
+    }
+    // The exception itself or one of that type wrapped in it, null if there is none
+    private static <E extends Throwable> E causeOf(Throwable e, Class<E> type) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause())
+            if (type.isInstance(cause))
+                return type.cast(cause);
+        return null;
+    }
+
     public Handler resetData(){
         return ctx -> {
 //            new Populator().createUsersAndRoles(HibernateConfig.getEntityManagerFactory());
-            new Populator().createPersonEntities(HibernateConfig.getEntityManagerFactory());
-            ctx.json(new ObjectMapper().createObjectNode().put("message", "Data reset"));
+            List<Person> persons = new Populator().createPersonEntities(HibernateConfig.getEntityManagerFactory());
+            suggestIndex.rebuild(consumer -> persons.forEach(person -> consumer.accept(new PersonDTO(person)))); // the table holds only these persons now
+            ctx.json(objectMapper.createObjectNode().put("message", "Data reset"));
         };
     }
 }
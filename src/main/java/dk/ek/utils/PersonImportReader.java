@@ -0,0 +1,215 @@
+package dk.ek.utils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.ek.dtos.PersonDTO;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+/**
+ * Purpose: Reads persons one row at a time from an upload in NDJSON (one JSON object per line) or CSV (with a header line), and validates each row.
+ * Nothing but the current row is held in memory, so the upload can be of any size.
+ * CSV follows RFC 4180: fields may be quoted with ", quotes inside are doubled, and quoted fields may span lines.
+ * The CSV header must name the columns firstName, lastName, email and birthDate (in any order, other columns are ignored).
+ */
+public class PersonImportReader implements Iterator<PersonImportReader.Row> {
+    public enum Format { CSV, NDJSON }
+
+    private static final String[] CSV_COLUMNS = {"firstname", "lastname", "email", "birthdate"};
+    private static final int MAX_TEXT_LENGTH = 255;
+
+    private final BufferedReader reader;
+    private final Format format;
+    private final ObjectMapper objectMapper;
+    private final int[] columnIndex = new int[CSV_COLUMNS.length];
+    private long rowNumber;
+    private Row next;
+    private boolean done;
+
+    public PersonImportReader(InputStream inputStream, Format format, ObjectMapper objectMapper) {
+        this.reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8), 64 * 1024);
+        this.format = format;
+        this.objectMapper = objectMapper;
+        if (format == Format.CSV)
+            readHeader();
+    }
+
+    // Finds the format from the content type of the upload, e.g. text/csv or application/x-ndjson
+    public static Format formatOf(String contentType) {
+        if (contentType == null)
+            throw new IllegalArgumentException("Content-Type must be text/csv or application/x-ndjson");
+        String type = contentType.toLowerCase(Locale.ROOT);
+        if (type.contains("csv"))
+            return Format.CSV;
+        if (type.contains("ndjson") || type.contains("jsonl") || type.contains("json-seq"))
+            return Format.NDJSON;
+        throw new IllegalArgumentException("Content-Type must be text/csv or application/x-ndjson, not " + contentType);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done)
+            next = readRow();
+        return next != null;
+    }
+
+    @Override
+    public Row next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Row row = next;
+        next = null;
+        return row;
+    }
+
+    private Row readRow() {
+        try {
+            if (format == Format.NDJSON) {
+                String line;
+                do {
+                    line = reader.readLine();
+                } while (line != null && line.isBlank());
+                if (line == null) {
+                    done = true;
+                    return null;
+                }
+                rowNumber++;
+                try {
+                    return validate(rowNumber, objectMapper.readValue(line, PersonDTO.class));
+                } catch (JsonProcessingException e) {
+                    return Row.invalid(rowNumber, "Not a JSON object: " + e.getOriginalMessage());
+                }
+            }
+            List<String> fields = readCsvRecord();
+            if (fields == null) {
+                done = true;
+                return null;
+            }
+            rowNumber++;
+            String[] values = new String[CSV_COLUMNS.length];
+            for (int i = 0; i < CSV_COLUMNS.length; i++)
+                values[i] = columnIndex[i] < fields.size() ? fields.get(columnIndex[i]).trim() : null;
+            LocalDate birthDate;
+            try {
+                birthDate = values[3] == null || values[3].isEmpty() ? null : LocalDate.parse(values[3]);
+            } catch (DateTimeParseException e) {
+                return Row.invalid(rowNumber, "birthDate must be a date like 1990-12-31, not " + values[3]);
+            }
+            return validate(rowNumber, new PersonDTO(null, values[0], values[1], values[2], birthDate));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static Row validate(long rowNumber, PersonDTO person) {
+        if (isBlank(person.getFirstName()) || isBlank(person.getLastName()))
+            return Row.invalid(rowNumber, "firstName and lastName are required");
+        if (isBlank(person.getEmail()) || !person.getEmail().matches("[^@\\s]+@[^@\\s]+"))
+            return Row.invalid(rowNumber, "email is missing or not valid");
+        if (person.getFirstName().length() > MAX_TEXT_LENGTH || person.getLastName().length() > MAX_TEXT_LENGTH || person.getEmail().length() > MAX_TEXT_LENGTH)
+            return Row.invalid(rowNumber, "Names and email can be at most " + MAX_TEXT_LENGTH + " characters");
+        if (person.getBirthDate() == null || person.getBirthDate().isAfter(LocalDate.now()))
+            return Row.invalid(rowNumber, "birthDate is missing or in the future");
+        return new Row(rowNumber, person, null);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isBlank();
+    }
+
+    private void readHeader() {
+        try {
+            List<String> header = readCsvRecord();
+            if (header == null)
+                throw new IllegalArgumentException("The CSV upload is empty, expected a header line");
+            for (int i = 0; i < CSV_COLUMNS.length; i++) {
+                columnIndex[i] = -1;
+                for (int j = 0; j < header.size(); j++)
+                    if (header.get(j).replace("\uFEFF", "").trim().replace("_", "").equalsIgnoreCase(CSV_COLUMNS[i])) // Excel puts a byte order mark in front of the first column
+                        columnIndex[i] = j;
+                if (columnIndex[i] == -1)
+                    throw new IllegalArgumentException("The CSV header must have the columns firstName, lastName, email and birthDate");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Null at the end of the input. Blank lines are skipped
+    private List<String> readCsvRecord() throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean empty = true;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        field.append('"');
+                    } else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                empty = false;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+                empty = false;
+            } else if (c == '\n' || c == '\r') {
+                if (c == '\r') {
+                    reader.mark(1);
+                    if (reader.read() != '\n')
+                        reader.reset();
+                }
+                if (!empty || field.length() > 0) {
+                    fields.add(field.toString());
+                    return fields;
+                }
+            } else {
+                field.append((char) c);
+                empty = false;
+            }
+        }
+        if (empty && field.length() == 0)
+            return null;
+        fields.add(field.toString());
+        return fields;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Row {
+        private final long rowNumber; // 1 is the first row after the CSV header
+        private final PersonDTO person; // null when the row is not valid
+        private final String error;
+
+        static Row invalid(long rowNumber, String error) {
+            return new Row(rowNumber, null, error);
+        }
+
+        public boolean isValid() {
+            return error == null;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package dk.ek.utils;
+
+import ch.qos.logback.core.PropertyDefinerBase;
+
+import java.util.Locale;
+
+/**
+ * Purpose: The runtime profile, dev, test or prod, from the PROFILE environment variable (or the profile system property).
+ * Without it the profile is prod when DEPLOYED is set, and dev otherwise. The tests run with profile=test (see the surefire configuration in pom.xml).
+ * dev logs every request, header and SQL statement. prod logs through a bounded asynchronous appender and writes a (sampled) access log, see logback.xml.
+ */
+public enum Profile {
+    DEV, TEST, PROD;
+
+    private static final Profile CURRENT = resolve();
+
+    public static Profile current() {
+        return CURRENT;
+    }
+
+    public static boolean isDev() {
+        return CURRENT == DEV;
+    }
+
+    private static Profile resolve() {
+        String profile = System.getProperty("profile", System.getenv("PROFILE"));
+        if (profile == null || profile.isBlank())
+            return System.getenv("DEPLOYED") != null ? PROD : DEV;
+        return valueOf(profile.strip().toUpperCase(Locale.ROOT));
+    }
+
+    // Lets logback.xml pick the configuration of the profile: <define name="PROFILE" class="dk.ek.utils.Profile$Definer"/>
+    public static class Definer extends PropertyDefinerBase {
+        @Override
+        public String getPropertyValue() {
+            return current().name().toLowerCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package dk.ek.utils;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Purpose: Time spent on the database and on serialization by one request, for the Server-Timing header (see dk.ek.rest.ServerTiming).
+ * The timing of the current request is kept in a thread local, so the database code can add to it without knowing the request.
+ * DbExecutor takes it along to the thread that runs the query. The counters are updated without locks, since a request can use more than one thread.
+ */
+public class RequestTiming {
+    private static final ThreadLocal<RequestTiming> CURRENT = new ThreadLocal<>();
+    private static final AtomicLongFieldUpdater<RequestTiming> DB_NANOS = AtomicLongFieldUpdater.newUpdater(RequestTiming.class, "dbNanos");
+    private static final AtomicLongFieldUpdater<RequestTiming> DB_STATEMENTS = AtomicLongFieldUpdater.newUpdater(RequestTiming.class, "dbStatements");
+    private static final AtomicLongFieldUpdater<RequestTiming> SERIALIZE_NANOS = AtomicLongFieldUpdater.newUpdater(RequestTiming.class, "serializeNanos");
+
+    private final long startNanos = System.nanoTime();
+    private volatile long dbNanos;
+    private volatile long dbStatements;
+    private volatile long serializeNanos;
+
+    // Null when the request is not timed (Server-Timing is switched off) or the thread is not serving a request
+    public static RequestTiming current() {
+        return CURRENT.get();
+    }
+
+    // Makes timing the current one of this thread and returns the one it replaces, to be restored with set when done
+    public static RequestTiming set(RequestTiming timing) {
+        RequestTiming previous = CURRENT.get();
+        if (timing == null)
+            CURRENT.remove();
+        else
+            CURRENT.set(timing);
+        return previous;
+    }
+
+    public void addDb(long nanos) {
+        DB_NANOS.addAndGet(this, nanos);
+        DB_STATEMENTS.incrementAndGet(this);
+    }
+
+    public void addSerialize(long nanos) {
+        SERIALIZE_NANOS.addAndGet(this, nanos);
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public long getDbNanos() {
+        return dbNanos;
+    }
+
+    public long getDbStatements() {
+        return dbStatements;
+    }
+
+    public long getSerializeNanos() {
+        return serializeNanos;
+    }
+}
@@ -0,0 +1,75 @@
+package dk.ek.utils;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Purpose: Build step (see the exec-maven-plugin in pom.xml) that precompresses the static files, so they are never compressed while a request waits.
+ * For every file in the directory a .br (brotli, best quality) and a .gz (gzip, best compression) is written next to it, when it is smaller than the file.
+ * The SHA-256 of every file is written to <directory>.sha256 (in sha256sum format), which StaticAssets uses as the list of files and for the ETags.
+ */
+public class StaticAssetCompressor {
+    public static final String BROTLI = ".br";
+    public static final String GZIP = ".gz";
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Path.of(args[0]);
+        if (!Files.isDirectory(directory))
+            return;
+        Brotli4jLoader.ensureAvailability();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(directory)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(file -> !file.toString().endsWith(BROTLI) && !file.toString().endsWith(GZIP))
+                    .sorted()
+                    .toList();
+        }
+        StringBuilder manifest = new StringBuilder();
+        for (Path file : files) {
+            byte[] content = Files.readAllBytes(file);
+            writeIfSmaller(file.resolveSibling(file.getFileName() + BROTLI), Encoder.compress(content, new Encoder.Parameters().setQuality(11)), content);
+            writeIfSmaller(file.resolveSibling(file.getFileName() + GZIP), gzip(content), content);
+            manifest.append(sha256(content)).append("  ").append(directory.relativize(file).toString().replace('\\', '/')).append('\n');
+        }
+        Files.writeString(directory.resolveSibling(directory.getFileName() + ".sha256"), manifest);
+        System.out.println("Precompressed " + files.size() + " static files in " + directory);
+    }
+
+    private static void writeIfSmaller(Path target, byte[] compressed, byte[] content) throws IOException {
+        if (compressed.length < content.length)
+            Files.write(target, compressed);
+        else
+            Files.deleteIfExists(target); // left over from an earlier build
+    }
+
+    private static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+            gzip.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static String sha256(byte[] content) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package dk.ek.utils;
 
-import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.fasterxml.jackson.module.blackbird.BlackbirdModule;
+import dk.ek.codegen.GeneratedCodecModule;
 import dk.ek.exceptions.ApiException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +19,7 @@ import java.util.Properties;
  */
 public class Utils {
     private static Logger logger = LoggerFactory.getLogger(Utils.class);
+    private static final ObjectMapper OBJECT_MAPPER = createObjectMapper();
     public static void main(String[] args) {
         System.out.println(getPropertyValue("db.name", "properties-from-pom.properties"));
     }
@@ -34,11 +36,21 @@ public class Utils {
         }
     }
 
-    public ObjectMapper getObjectMapper() {
-        ObjectMapper objectMapper = new ObjectMapper();
+    // The one ObjectMapper of the application, also used by Javalin for ctx.json (see ApplicationConfig). Don't change its configuration after startup, it is shared by all threads
+    public static ObjectMapper getObjectMapper() {
+        return OBJECT_MAPPER;
+    }
+
+    private static ObjectMapper createObjectMapper() {
+        return configure(new ObjectMapper());
+    }
+
+    // Gives a mapper the configuration of the application's ObjectMapper, e.g. a mapper for a binary format
+    public static <T extends ObjectMapper> T configure(T objectMapper) {
         objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false); // Ignore unknown properties in JSON
         objectMapper.registerModule(new JavaTimeModule()); // Serialize and deserialize java.time objects
-        objectMapper.writer(new DefaultPrettyPrinter());
+        objectMapper.registerModule(new BlackbirdModule()); // Generated accessors instead of reflection
+        objectMapper.registerModule(new GeneratedCodecModule()); // The codecs generated for the DTOs annotated with @JsonCodec
         return objectMapper;
     }
 
@@ -5,6 +5,8 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.mindrot.jbcrypt.BCrypt;
 
 import java.util.HashSet;
@@ -16,6 +18,8 @@ import java.util.Set;
 
 @Entity
 @Table(name="roles")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE, region = "roles")
 public class Role {
     @Id
     @Column(name = "rolename", nullable = false)
@@ -2,6 +2,8 @@ package dk.security;
 
 import jakarta.persistence.*;
 import lombok.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.mindrot.jbcrypt.BCrypt;
 
 import java.util.HashSet;
@@ -13,13 +15,18 @@ import java.util.Set;
 
 @Entity
 @Table(name="users")
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "users")
 public class User {
+    public static final int BCRYPT_COST = 12; // 2^12 rounds. Every login check pays for them as well, see PasswordBenchmark
+
     @Id
     @Column(name = "username", nullable = false)
     private String username;
     private String password;
 
     @ManyToMany
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "users.roles")
     @JoinTable(
             name = "user_roles",
             joinColumns = @JoinColumn(name = "username"),
@@ -32,7 +39,7 @@ public class User {
     }
 
     public User(String username, String password) {
-        String hashed = BCrypt.hashpw(password, BCrypt.gensalt(12));
+        String hashed = BCrypt.hashpw(password, BCrypt.gensalt(BCRYPT_COST));
         this.username = username;
         this.password = hashed;
     }
@@ -10,19 +10,22 @@ import dk.security.SecurityDAO;
 import dk.security.User;
 import io.javalin.http.Context;
 import io.javalin.http.Handler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.Set;
 
 public class SecurityController implements ISecurityController{
+    private static final Logger logger = LoggerFactory.getLogger(SecurityController.class);
     ISecurityDAO securityDAO = new SecurityDAO(HibernateConfig.getEntityManagerFactory());
-    ObjectMapper objectMapper = new Utils().getObjectMapper();
+    ObjectMapper objectMapper = Utils.getObjectMapper();
 
     @Override
     public Handler login() {
         return (Context ctx)-> {
             User user = ctx.bodyAsClass(User.class);
             User checkedUser =  securityDAO.getVerifiedUser(user.getUsername(), user.getPassword());
-            System.out.println("Succes for user: " + checkedUser.getUsername());
+            logger.debug("Succes for user: {}", checkedUser.getUsername());
            ObjectNode on =  objectMapper.createObjectNode().put("msg", "Login succesful");
             ctx.json(on).status(200);
 
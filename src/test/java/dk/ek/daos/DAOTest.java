@@ -1,14 +1,44 @@
 package dk.ek.daos;
 
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.CacheMetrics;
+import dk.ek.persistence.DbExecutor;
+import dk.ek.persistence.ReadRouting;
+import dk.ek.persistence.daos.AsyncPersonDAO;
+import dk.ek.persistence.daos.PersonCopyDAO;
+import dk.ek.persistence.daos.PersonFields;
+import dk.ek.persistence.daos.PersonFilter;
+import dk.ek.dtos.ImportResultDTO;
+import dk.ek.utils.PersonImportReader;
+import dk.ek.utils.Utils;
 import dk.ek.persistence.daos.PersonDAO;
 import dk.ek.persistence.model.*;
+import jakarta.persistence.EntityManager;
 import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.EntityNotFoundException;
+import jakarta.persistence.NoResultException;
+import jakarta.persistence.OptimisticLockException;
 import dk.ek.persistence.HibernateConfig;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.stat.Statistics;
 import org.junit.jupiter.api.*;
 import rest.TestUtils;
 
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -54,8 +84,82 @@ class DAOTest {
         Person toBeCreated = new Person("Kurt", "Kurtson", "kurt@mail.com", LocalDate.now());
         Person person = personDao.create(toBeCreated);
         assert person.getId() != null;
+        assertThrows(ConstraintViolationException.class, () -> personDao.create(new Person("Kurt", "Again", "kurt@mail.com", LocalDate.now())));
     }
 
+    @Test
+    @DisplayName("The id sequence catches up with ids it did not hand out, as those of the old IDENTITY column")
+    void idSequenceCatchUp() {
+        try (EntityManager em = emf.createEntityManager()) {
+            em.getTransaction().begin();
+            em.createNativeQuery("INSERT INTO persons (id, first_name, last_name, email, birth_date, version) VALUES (1000000, 'Old', 'Identity', 'old@identity.dk', DATE '1970-01-01', 0)").executeUpdate();
+            em.createNativeQuery(Person.idSequenceCatchUpSql()).getResultList();
+            long next = ((Number) em.createNativeQuery("SELECT nextval('persons_seq')").getSingleResult()).longValue();
+            assertTrue(next - Person.ID_ALLOCATION_SIZE + 1 > 1000000, "The next block of ids starts at " + (next - Person.ID_ALLOCATION_SIZE + 1));
+
+            em.createNativeQuery(Person.idSequenceCatchUpSql()).getResultList(); // already past max(id): the sequence is left alone
+            assertEquals(next + Person.ID_ALLOCATION_SIZE, ((Number) em.createNativeQuery("SELECT nextval('persons_seq')").getSingleResult()).longValue());
+            em.getTransaction().commit();
+        }
+    }
+
+    @Test
+    @DisplayName("Test that we can create many persons in one batched transaction")
+    void createAll() {
+        List<Person> persons = IntStream.range(0, 120)
+                .mapToObj(i -> new Person("Bulk" + i, "Bulkson", "bulk" + i + "@mail.com", LocalDate.now()))
+                .toList();
+        assertEquals(120, personDao.createAll(persons));
+        assertTrue(persons.stream().allMatch(person -> person.getId() != null));
+        assertEquals(123, personDao.getAll().size());
+    }
+
+    @Test
+    @DisplayName("Test that a CSV import copies the valid rows and reports the rejected ones")
+    void importPersons() {
+        String csv = "firstName,lastName,email,birthDate\n"
+                + "Carl,\"Import, Jr.\",carl@import.dk,1985-03-03\n"
+                + "Dorte,Import,dorte@import.dk,not a date\n"
+                + "Erik,Import," + p1.getEmail() + ",1987-05-05\n"
+                + "Carl,Again,carl@import.dk,1985-03-03\n";
+        PersonImportReader rows = new PersonImportReader(new ByteArrayInputStream(csv.getBytes(StandardCharsets.UTF_8))
+                , PersonImportReader.Format.CSV, Utils.getObjectMapper());
+        List<PersonDTO> imported = new ArrayList<>();
+        ImportResultDTO result = new PersonCopyDAO(emf).importPersons(rows, 10, imported::add);
+        assertEquals(4, result.getReceived());
+        assertEquals(1, result.getAccepted());
+        assertEquals(3, result.getRejected());
+        assertEquals(List.of(2L, 3L, 4L), result.getErrors().stream().map(ImportResultDTO.RowError::getRow).sorted().toList());
+        assertEquals("Import, Jr.", personDao.getPersonByEmail("carl@import.dk").getLastName());
+        assertEquals(1, imported.size());
+        assertEquals(personDao.getPersonByEmail("carl@import.dk").getId(), imported.get(0).getId());
+        assertEquals(4, personDao.getAll().size());
+        assertNotNull(personDao.create(new Person("Fie", "After", "fie@import.dk", LocalDate.now())).getId()); // the sequence still hands out free ids
+    }
+
+    @Test
+    @DisplayName("Test that we can search persons by last name, birth date range and text")
+    void search() {
+        personDao.create(new Person("Anna", "Old", "anna_old@mail.com", LocalDate.of(1950, 1, 1)));
+        personDao.create(new Person("Bo", "Older", "bo@mail.com", LocalDate.of(1940, 1, 1)));
+
+        List<PersonDTO> hansens = personDao.search(PersonFilter.builder().lastName("HANSEN").sort("-lastName").build(), 0, 10);
+        assertEquals(3, hansens.size());
+        List<PersonDTO> old = personDao.search(PersonFilter.builder().bornBefore(LocalDate.of(2000, 1, 1)).build(), 0, 10);
+        assertEquals(List.of("Bo", "Anna"), old.stream().map(PersonDTO::getFirstName).toList()); // sorted by birth date by default
+        assertEquals(List.of("Anna", "Bo"), personDao.search(PersonFilter.builder().q("OLD").build(), 0, 10).stream().map(PersonDTO::getFirstName).toList());
+        assertEquals(1, personDao.search(PersonFilter.builder().q("a_o").build(), 0, 10).size()); // _ is not a wildcard
+        assertEquals(1, personDao.search(PersonFilter.builder().q("old").build(), 1, 10).size());
+    }
+
+    @Test
+    @DisplayName("Test that searches the indexes can not answer are rejected")
+    void searchRejected() {
+        assertThrows(IllegalArgumentException.class, () -> PersonFilter.builder().q("ol").build().validateSearch());
+        assertThrows(IllegalArgumentException.class, () -> PersonFilter.builder().sort("firstName").build().validateSearch());
+        assertThrows(IllegalArgumentException.class, () -> PersonFilter.builder().bornAfter(LocalDate.of(2000, 1, 1)).sort("lastName").build().validateSearch());
+        assertDoesNotThrow(() -> PersonFilter.builder().bornAfter(LocalDate.of(2000, 1, 1)).lastName("Hansen").sort("lastName").build().validateSearch());
+    }
 
     @Test
     @DisplayName("Test that we can get all persons")
@@ -63,6 +167,26 @@ class DAOTest {
         assertEquals(3, personDao.getAll().size());
     }
 
+    @Test
+    @DisplayName("Test that we can page through all persons ordered by id")
+    void getPage() {
+        List<Person> first = personDao.getPage(0L, 2);
+        assertEquals(2, first.size());
+        assertTrue(first.get(0).getId() < first.get(1).getId());
+        List<Person> second = personDao.getPage(first.get(1).getId(), 2);
+        assertEquals(1, second.size());
+        assertTrue(second.get(0).getId() > first.get(1).getId());
+    }
+
+    @Test
+    @DisplayName("Test that the DTO projections return the same data as the entities")
+    void dtoProjections() {
+        assertEquals(new PersonDTO(p1), personDao.findDTOById(p1.getId()));
+        List<PersonDTO> page = personDao.getDTOPage(0L, 10);
+        assertEquals(3, page.size());
+        assertEquals(PersonDTO.getEntities(personDao.getPage(0L, 10)), page);
+    }
+
     @Test
     @DisplayName("Test that we can get a person by id")
     void getById() {
@@ -70,6 +194,22 @@ class DAOTest {
         assert person.getId() != null && person.getId().equals(p1.getId());
     }
 
+    @Test
+    @DisplayName("Test that a person found by id is served from the second-level cache")
+    void getByIdCached() {
+        personDao.findById(p2.getId());
+        long hitsBefore = personsCacheHits();
+        personDao.findById(p2.getId());
+        assertTrue(personsCacheHits() > hitsBefore);
+    }
+
+    private long personsCacheHits() {
+        return HibernateConfig.getCacheMetrics().getRegionStatistics().stream()
+                .filter(region -> region.getRegion().equals("persons"))
+                .mapToLong(CacheMetrics.RegionStatistics::getHits)
+                .sum();
+    }
+
     @Test
     @DisplayName("Test that we can update a person")
     void update() {
@@ -80,11 +220,187 @@ class DAOTest {
         assertEquals("Hansine", updated.getFirstName());
     }
 
+    @Test
+    @DisplayName("Test that an update with an old version is rejected")
+    void updateStaleVersion() {
+        Person person = personDao.findById(p1.getId());
+        Integer readVersion = person.getVersion();
+        person.setFirstName("Hansine");
+        assertEquals(readVersion + 1, personDao.update(person).getVersion());
+
+        person.setVersion(readVersion);
+        person.setFirstName("Hanne");
+        assertThrows(OptimisticLockException.class, () -> personDao.update(person));
+        assertEquals("Hansine", personDao.findById(p1.getId()).getFirstName());
+
+        try (EntityManager em = emf.createEntityManager()) { // a change the cached person does not know of (plain JDBC), so only the version in the UPDATE catches it
+            em.getTransaction().begin();
+            em.unwrap(Session.class).doWork(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement("UPDATE persons SET version = version + 1 WHERE id = ?")) {
+                    statement.setLong(1, p1.getId());
+                    statement.executeUpdate();
+                }
+            });
+            em.getTransaction().commit();
+        }
+        Person cached = personDao.findById(p1.getId());
+        cached.setFirstName("Hanne");
+        assertThrows(OptimisticLockException.class, () -> personDao.update(cached));
+    }
+
+    @Test
+    @DisplayName("Test that an update and a delete are one statement each and leave the other cached persons in the cache")
+    void updateAndDeleteOneStatement() {
+        Person person = personDao.findById(p1.getId()); // both in the second-level cache now
+        personDao.findById(p2.getId());
+        Statistics statistics = emf.unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+
+        person.setFirstName("Hansine");
+        assertEquals(person.getVersion() + 1, personDao.update(person).getVersion());
+        assertEquals(1, statistics.getPrepareStatementCount()); // UPDATE ... WHERE id = ? AND version = ?
+        assertEquals("Hansine", personDao.findById(p1.getId()).getFirstName());
+        assertEquals(p2.getEmail(), personDao.findById(p2.getId()).getEmail());
+        assertEquals(1, statistics.getPrepareStatementCount()); // both read from the cache
+
+        personDao.delete(p2.getId(), p2.getVersion());
+        assertEquals(2, statistics.getPrepareStatementCount()); // DELETE ... WHERE id = ? AND version = ?
+        personDao.findById(p1.getId());
+        assertEquals(2, statistics.getPrepareStatementCount());
+    }
+
+    @Test
+    @DisplayName("Test that updating or deleting a missing person is reported")
+    void missingPerson() {
+        Person missing = new Person("No", "Body", "nobody@mail.com", LocalDate.now());
+        missing.setId(-1L);
+        assertThrows(EntityNotFoundException.class, () -> personDao.update(missing));
+        assertThrows(EntityNotFoundException.class, () -> personDao.delete(-1L, null));
+    }
+
+    @Test
+    @DisplayName("Test that only the requested fields are selected, and that field sets are reused")
+    void sparseFields() {
+        PersonFields fields = PersonFields.of("email, firstName");
+        assertSame(fields, PersonFields.of("firstName,email,id"));
+        assertEquals("SELECT p.id, p.firstName, p.email FROM Person p", fields.getSelect());
+        assertThrows(IllegalArgumentException.class, () -> PersonFields.of("firstName,password"));
+
+        Map<String, Object> person = personDao.findById(p1.getId(), fields);
+        assertEquals(List.of("id", "firstName", "email"), List.copyOf(person.keySet()));
+        assertEquals(p1.getEmail(), person.get("email"));
+        List<Map<String, Object>> page = personDao.getPage(0L, 2, PersonFields.of("lastName"));
+        assertEquals(2, page.size());
+        assertEquals(Map.of("id", p1.getId(), "lastName", p1.getLastName()), page.get(0));
+        assertEquals(1, personDao.search(PersonFilter.builder().q("grethe").build(), fields, 0, 10).size());
+    }
+
     @Test
     @DisplayName("Test that we can delete a person")
     void delete() {
         Person person = personDao.findById(p1.getId());
-        personDao.delete(person.getId());
+        assertThrows(OptimisticLockException.class, () -> personDao.delete(person.getId(), person.getVersion() + 1));
+        assertEquals(person.getEmail(), personDao.delete(person.getId(), person.getVersion()).getEmail());
+        assertThrows(NoResultException.class, () -> personDao.findById(p1.getId())); // not served from the second-level cache
+        assertNull(personDao.getPersonByEmail(p1.getEmail())); // nor from the query cache
         assertEquals(2, personDao.getAll().size());
     }
-}
\ No newline at end of file
+
+    @Test
+    @DisplayName("Test that the async DAO completes on the db executor")
+    void asyncFindById() {
+        AsyncPersonDAO asyncDao = new AsyncPersonDAO(personDao, new DbExecutor(2, 10));
+        assertEquals(p1.getEmail(), asyncDao.findById(p1.getId()).join().getEmail());
+        assertEquals(3, asyncDao.getDTOPage(0L, 10).join().size());
+        CompletionException missing = assertThrows(CompletionException.class, () -> asyncDao.findById(-1L).join());
+        assertInstanceOf(NoResultException.class, missing.getCause());
+    }
+
+    @Test
+    @DisplayName("Test that reads stick to the primary after a write of the same client, also on the db executor")
+    void readYourWritesPerClient() {
+        EntityManagerFactory replica = (EntityManagerFactory) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{EntityManagerFactory.class}, (proxy, method, args) -> null);
+        ReadRouting routing = new ReadRouting(emf, replica, ReadRouting.Policy.READ_YOUR_WRITES, 1000);
+        DbExecutor executor = new DbExecutor(2, 10);
+        assertSame(replica, routing.forRead()); // no client
+
+        ReadRouting.Client client = new ReadRouting.Client(0);
+        ReadRouting.Client.set(client);
+        try {
+            assertSame(replica, executor.supply(routing::forRead).join());
+            assertSame(emf, executor.supply(routing::forWrite).join());
+            assertTrue(client.hasWrittenNow());
+            assertSame(emf, executor.supply(routing::forRead).join());
+
+            ReadRouting.Client.set(new ReadRouting.Client(client.getLastWriteMillis())); // the next request of the client, with its cookie
+            assertSame(emf, routing.forRead());
+            ReadRouting.Client.set(new ReadRouting.Client(System.currentTimeMillis() - 2000)); // a write longer ago than the sticky time
+            assertSame(replica, routing.forRead());
+        } finally {
+            ReadRouting.Client.set(null);
+        }
+    }
+
+    @Test
+    @DisplayName("Test that a virtual thread runs its db calls itself instead of on the db executor")
+    void virtualThreadsRunInline() throws Exception {
+        DbExecutor executor = new DbExecutor(1, 1);
+        CompletableFuture<Thread> ranOn = new CompletableFuture<>();
+        Thread caller = Thread.ofVirtual().start(() -> executor.supply(Thread::currentThread).whenComplete((thread, e) -> ranOn.complete(thread)));
+        caller.join();
+        assertSame(caller, ranOn.get());
+        assertEquals(0, executor.getCompletedCount());
+        assertNotSame(Thread.currentThread(), executor.supply(Thread::currentThread).join()); // platform threads still hand it over
+    }
+
+    @Test
+    @DisplayName("Test that a saturated db executor rejects instead of queueing")
+    void asyncRejectsWhenSaturated() {
+        DbExecutor executor = new DbExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.supply(() -> { await(release); return null; }); // occupies the thread
+        executor.supply(() -> null); // fills the queue
+        CompletableFuture<Object> rejected = executor.supply(() -> null);
+        release.countDown();
+        CompletionException ex = assertThrows(CompletionException.class, rejected::join);
+        assertInstanceOf(RejectedExecutionException.class, ex.getCause());
+        assertEquals(1, executor.getRejectedCount());
+    }
+
+    @Test
+    @DisplayName("Test that virtual threads running inline are bounded like the db executor and rejected beyond that")
+    void virtualThreadsRejectWhenSaturated() throws Exception {
+        DbExecutor executor = new DbExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(2);
+        List<Thread> callers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) // the thread and the queue's worth
+            callers.add(Thread.ofVirtual().start(() -> executor.supply(() -> { running.countDown(); await(release); return null; })));
+        running.await();
+        assertEquals(1, executor.getActiveCount());
+        assertEquals(1, executor.getQueueDepth());
+        assertEquals(1.0, executor.getSaturation());
+
+        CompletableFuture<CompletableFuture<Object>> rejected = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> rejected.complete(executor.supply(() -> null))).join();
+        CompletionException ex = assertThrows(CompletionException.class, () -> rejected.get().join());
+        assertInstanceOf(RejectedExecutionException.class, ex.getCause());
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        for (Thread caller : callers)
+            caller.join();
+        assertEquals(0.0, executor.getSaturation());
+        CompletableFuture<Object> accepted = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> executor.supply(() -> "again").thenAccept(accepted::complete)).join();
+        assertEquals("again", accepted.get());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package dk.ek.daos;
+
+import dk.ek.dtos.SimplePersonDTO;
+import dk.ek.persistence.PersonStore;
+import org.junit.jupiter.api.*;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Purpose: PersonStore hammered from several threads at once. No database needed.
+ */
+class PersonStoreTest {
+    private static final int THREADS = 8;
+
+    private PersonStore store;
+
+    @BeforeEach
+    void setUp() {
+        store = new PersonStore();
+    }
+
+    private static SimplePersonDTO person(String email) {
+        return new SimplePersonDTO("First", "Last", email, LocalDate.of(1990, 1, 1), SimplePersonDTO.JobTitle.STUDENT);
+    }
+
+    // Runs the task on THREADS threads, started at the same time, and waits for them. An exception in a thread fails the test
+    private static void inParallel(Runnable task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> tasks = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(THREADS)) {
+            for (int i = 0; i < THREADS; i++) {
+                tasks.add(executor.submit(() -> {
+                    start.await();
+                    task.run();
+                    return null;
+                }));
+            }
+            start.countDown();
+        }
+        for (Future<?> done : tasks)
+            done.get();
+    }
+
+    @Test
+    @DisplayName("Concurrent creates keep every person, each with its own id and findable by email")
+    void concurrentCreates() throws Exception {
+        int perThread = 2000;
+        AtomicInteger emails = new AtomicInteger();
+        inParallel(() -> {
+            for (int i = 0; i < perThread; i++)
+                store.create(person("p" + emails.incrementAndGet() + "@mail.com"));
+        });
+
+        assertEquals(THREADS * perThread, store.size());
+        for (int i = 1; i <= THREADS * perThread; i++) {
+            SimplePersonDTO found = store.getByEmail("p" + i + "@mail.com");
+            assertNotNull(found);
+            assertSame(found, store.get(found.getId()));
+        }
+    }
+
+    @Test
+    @DisplayName("Only one of the threads creating a person with the same email succeeds")
+    void duplicateEmails() throws Exception {
+        int persons = 500;
+        AtomicInteger created = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        inParallel(() -> {
+            for (int i = 0; i < persons; i++) {
+                try {
+                    store.create(person("same" + i + "@mail.com"));
+                    created.incrementAndGet();
+                } catch (IllegalStateException e) {
+                    rejected.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(persons, store.size());
+        assertEquals(persons, created.get());
+        assertEquals((THREADS - 1) * persons, rejected.get());
+    }
+
+    @Test
+    @DisplayName("A lookup by email never finds a person with another email while the emails change")
+    void emailIndexUnderConcurrentUpdates() throws Exception {
+        int persons = 100;
+        UUID[] ids = new UUID[persons];
+        for (int i = 0; i < persons; i++)
+            ids[i] = store.create(person("a" + i + "@mail.com")).getId();
+
+        int writers = THREADS / 2; // move their persons back and forth between two emails, the other threads read
+        AtomicInteger threads = new AtomicInteger();
+        CountDownLatch writing = new CountDownLatch(writers);
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        inParallel(() -> {
+            int thread = threads.getAndIncrement();
+            if (thread < writers) {
+                for (int round = 0; round < 2000; round++)
+                    for (int i = thread; i < persons; i += writers)
+                        store.update(ids[i], person((round % 2 == 0 ? "b" : "a") + i + "@mail.com"));
+                writing.countDown();
+                return;
+            }
+            while (writing.getCount() > 0) {
+                for (int i = 0; i < persons; i++) {
+                    for (String email : new String[]{"a" + i + "@mail.com", "b" + i + "@mail.com"}) {
+                        SimplePersonDTO found = store.getByEmail(email);
+                        if (found != null && (!email.equals(found.getEmail()) || !ids[i].equals(found.getId())))
+                            failures.add(email + " found " + found);
+                    }
+                }
+            }
+        });
+
+        assertTrue(failures.isEmpty(), () -> failures.size() + " wrong lookups, e.g. " + failures.peek());
+        assertEquals(persons, store.size());
+        for (int i = 0; i < persons; i++) { // 2000 rounds end with the a-emails
+            assertEquals(ids[i], store.getByEmail("a" + i + "@mail.com").getId());
+            assertNull(store.getByEmail("b" + i + "@mail.com"));
+        }
+    }
+
+    @Test
+    @DisplayName("After a delete the email is free again")
+    void deleteFreesEmail() {
+        SimplePersonDTO person = store.create(person("gone@mail.com"));
+        assertThrows(IllegalStateException.class, () -> store.create(person("gone@mail.com")));
+
+        assertSame(person, store.delete(person.getId()));
+        assertNull(store.delete(person.getId()));
+        assertNull(store.getByEmail("gone@mail.com"));
+        assertNotNull(store.create(person("gone@mail.com")).getId());
+    }
+
+    @Test
+    @DisplayName("Ids are version 7 UUIDs that sort by creation time")
+    void timeOrderedIds() throws InterruptedException {
+        long before = System.currentTimeMillis();
+        UUID first = PersonStore.newId();
+        Thread.sleep(2);
+        UUID second = PersonStore.newId();
+
+        assertEquals(7, first.version());
+        assertEquals(2, first.variant());
+        long millis = first.getMostSignificantBits() >>> 16;
+        assertTrue(millis >= before && millis <= System.currentTimeMillis());
+        assertTrue(first.compareTo(second) < 0);
+
+        Set<UUID> ids = new HashSet<>();
+        for (int i = 0; i < 100_000; i++)
+            ids.add(PersonStore.newId());
+        assertEquals(100_000, ids.size());
+    }
+}
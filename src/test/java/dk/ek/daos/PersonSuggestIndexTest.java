@@ -0,0 +1,190 @@
+package dk.ek.daos;
+
+import dk.ek.dtos.PersonDTO;
+import dk.ek.persistence.PersonSuggestIndex;
+import org.junit.jupiter.api.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Purpose: PersonSuggestIndex with persons in the snapshot, in the delta and both, and written to while it is rebuilt. No database needed.
+ */
+class PersonSuggestIndexTest {
+    private PersonSuggestIndex index;
+
+    @BeforeEach
+    void setUp() {
+        index = new PersonSuggestIndex();
+    }
+
+    private static PersonDTO person(long id, String firstName, String lastName) {
+        return new PersonDTO(id, firstName, lastName, (firstName + "." + lastName + "@mail.com").toLowerCase(), null);
+    }
+
+    private static PersonDTO person(long id, String firstName, String lastName, int version) {
+        return new PersonDTO(id, firstName, lastName, (firstName + "." + lastName + "@mail.com").toLowerCase(), null, version);
+    }
+
+    private void rebuild(PersonDTO... persons) {
+        index.rebuild(consumer -> List.of(persons).forEach(consumer));
+    }
+
+    private List<Long> ids(String prefix) {
+        return index.suggest(prefix, 50).stream().map(PersonDTO::getId).toList();
+    }
+
+    @Test
+    @DisplayName("Suggestions from the snapshot and the delta are merged in key order")
+    void mergesSnapshotAndDelta() {
+        rebuild(person(1, "Anna", "Berg"), person(2, "Anders", "Holm"), person(3, "Bo", "Andersen"));
+        index.put(person(4, "Andrea", "Kvist"));
+        index.put(person(5, "Bent", "Anholt"));
+
+        // anders, andersen, andrea, anholt, anna
+        assertEquals(List.of(2L, 3L, 4L, 5L, 1L), ids("an"));
+        assertEquals(List.of(2L, 3L), index.suggest("an", 2).stream().map(PersonDTO::getId).toList());
+        assertEquals(List.of(1L), ids("anna b")); // the full name
+        assertEquals(List.of(5L), ids("bent.anholt@")); // the email
+        assertEquals("Andrea", index.suggest("andrea", 1).get(0).getFirstName());
+        assertEquals(List.of(), ids("x"));
+        assertEquals(5, index.size());
+    }
+
+    @Test
+    @DisplayName("An update or delete hides the person's snapshot entries")
+    void updatesAndDeletesHideSnapshot() {
+        rebuild(person(1, "Anna", "Berg"), person(2, "Carl", "Berg"));
+        index.put(person(1, "Dorte", "Berg"));
+
+        assertEquals(List.of(), ids("anna"));
+        assertEquals(List.of(1L), ids("dorte"));
+        assertEquals(List.of(2L, 1L), ids("berg")); // the same key, the snapshot's entry first
+        assertEquals("Dorte", index.suggest("dorte berg", 1).get(0).getFirstName());
+
+        index.remove(1L);
+        index.remove(2L);
+        assertEquals(List.of(), ids("berg"));
+        assertEquals(List.of(), ids("dorte"));
+        assertEquals(0, index.size());
+
+        index.put(person(2, "Carl", "Berg")); // back again
+        assertEquals(List.of(2L), ids("berg"));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    @DisplayName("Writes that arrive out of order keep the newest version, and a removed person stays removed")
+    void outOfOrderWrites() {
+        rebuild(person(1, "Anna", "Berg", 3), person(2, "Carl", "Berg", 0));
+
+        index.put(person(1, "Anne", "Berg", 2)); // older than the snapshot's
+        assertEquals(List.of(1L), ids("anna"));
+        assertEquals(List.of(), ids("anne"));
+
+        index.put(person(2, "Carla", "Berg", 2)); // two updates, the newer one first
+        index.put(person(2, "Carl", "Dahl", 1));
+        assertEquals(List.of(2L), ids("carla"));
+        assertEquals(List.of(), ids("dahl"));
+
+        index.remove(2L, 2); // a delete, and the update it deleted arriving after it
+        index.put(person(2, "Carla", "Berg", 2));
+        assertEquals(List.of(), ids("carla"));
+        assertEquals(1, index.size());
+
+        index.remove(1L, 3); // the tombstone outlives the next rebuild
+        rebuild(person(3, "Erik", "Falk", 0));
+        index.put(person(1, "Anna", "Berg", 3));
+        assertEquals(List.of(), ids("anna"));
+        assertEquals(List.of(3L), ids("erik"));
+
+        index.put(person(3, "Erik", "Gran", 1)); // the versions in the snapshot are kept by a rebuild
+        index.put(person(3, "Erik", "Falk", 0));
+        assertEquals(List.of(3L), ids("gran"));
+        assertEquals(List.of(), ids("falk"));
+    }
+
+    @Test
+    @DisplayName("Case and accents are ignored, ø and æ are spelled out")
+    void normalizesAccents() {
+        rebuild(person(1, "José", "Núñez"), person(2, "Søren", "Ærø"));
+        index.put(person(3, "Zoë", "Müller"));
+
+        assertEquals(List.of(1L), ids("jose"));
+        assertEquals(List.of(1L), ids("JOSÉ"));
+        assertEquals(List.of(1L), ids("nune"));
+        assertEquals(List.of(2L), ids("soren"));
+        assertEquals(List.of(2L), ids("Sør"));
+        assertEquals(List.of(2L), ids("aero"));
+        assertEquals(List.of(3L), ids("zoe m"));
+        assertEquals("Søren", index.suggest("soren", 1).get(0).getFirstName()); // shown as they are spelled
+    }
+
+    @Test
+    @DisplayName("Writes made while a rebuild reads the database are kept")
+    void writesDuringRebuild() throws Exception {
+        rebuild(person(1, "Anna", "Berg"));
+        CountDownLatch loaded = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        Thread rebuild = Thread.ofPlatform().start(() -> index.rebuild(consumer -> {
+            consumer.accept(person(1, "Anna", "Berg"));
+            consumer.accept(person(2, "Carl", "Dahl"));
+            loaded.countDown();
+            try {
+                written.await(); // the database has been read, the snapshot is not built yet
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        loaded.await();
+        index.put(person(3, "Erik", "Falk"));
+        index.put(person(1, "Anna", "Gran")); // the rebuild read her before she married
+        index.remove(2L); // and Carl before he was deleted
+        written.countDown();
+        rebuild.join();
+
+        assertEquals(List.of(1L), ids("anna"));
+        assertEquals(List.of(1L), ids("gran"));
+        assertEquals(List.of(), ids("berg"));
+        assertEquals(List.of(), ids("carl"));
+        assertEquals(List.of(3L), ids("erik"));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    @DisplayName("Concurrent puts and removes are kept while the delta is compacted in the background")
+    void writesDuringCompaction() throws Exception {
+        int threads = 4;
+        int perThread = 10_000; // 40.000 puts in the delta start compactions
+        List<Future<?>> tasks = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (int t = 0; t < threads; t++) {
+                long first = (long) t * perThread + 1;
+                tasks.add(executor.submit(() -> {
+                    for (long id = first; id < first + perThread; id++) {
+                        index.put(person(id, "Name" + id, "Thread"));
+                        if (id % 10 == 0)
+                            index.remove(id);
+                    }
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> task : tasks)
+            task.get();
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().equals("person-suggest-compaction"))
+                thread.join();
+
+        int expected = threads * perThread - threads * perThread / 10;
+        assertEquals(expected, index.size());
+        for (long id = 1; id <= threads * perThread; id++)
+            assertEquals(id % 10 == 0 ? List.of() : List.of(id), ids("name" + id + " t"), "person " + id);
+    }
+}
@@ -0,0 +1,93 @@
+package rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import dk.ek.codegen.GeneratedCodecModule;
+import dk.ek.dtos.PersonDTO;
+import dk.ek.dtos.SimplePersonDTO;
+import dk.ek.rest.CachingJsonMapper;
+import dk.ek.utils.Utils;
+import io.javalin.json.JavalinJackson;
+import io.javalin.json.JsonMapper;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Purpose: Checks that the shared JSON mapper (with the codecs generated for the DTOs) reads and writes JSON like plain Jackson.
+ * Their speed is compared by JsonMapperBenchmark, and JSON with the binary formats by ContentFormatBenchmark (mvn -P jmh test).
+ */
+class JsonMapperTest {
+    private static final int LIST_SIZE = 1000;
+
+    private final JsonMapper javalinDefault = new JavalinJackson();
+    private final JsonMapper shared = new CachingJsonMapper(Utils.getObjectMapper());
+
+    @Test
+    @DisplayName("The shared mapper, with the generated codecs, writes the same JSON as Javalin's default mapper")
+    void sameJsonAsJavalin() throws IOException {
+        assertInstanceOf(GeneratedCodecModule.CodecSerializer.class, Utils.getObjectMapper().getSerializerProviderInstance().findValueSerializer(PersonDTO.class));
+        PersonDTO withEverything = PersonDTO.builder().id(7L).firstName("Åse \"Quote\"").lastName("Ørsted").email("ase@mail.dk")
+                .birthDate(LocalDate.of(1970, 12, 31)).address("Vej 1\n2800").hobbies(new TreeSet<>(Set.of("chess", "golf"))).version(3).build();
+        SimplePersonDTO withNulls = new SimplePersonDTO(null, "Grethe", null, null, null, null);
+        for (Object value : List.of(persons(), simplePersons(), withEverything, new PersonDTO(), withNulls, Map.of("person", withEverything))) {
+            assertArrayEquals(javalinDefault.toJsonStream(value, value.getClass()).readAllBytes(), shared.toJsonStream(value, Object.class).readAllBytes(), value.toString());
+        }
+    }
+
+    @Test
+    @DisplayName("The generated codecs read JSON the way Jackson does")
+    void readLikeJackson() {
+        ObjectMapper jackson = new ObjectMapper().registerModule(new JavaTimeModule()).configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        List<String> inputs = List.of(
+                "{\"id\":7,\"firstName\":\"Åse\",\"lastName\":\"Ørsted\",\"email\":\"ase@mail.dk\",\"birthDate\":[1970,12,31],\"address\":null,\"hobbies\":[\"chess\"],\"version\":3}",
+                "{\"id\":\"8\",\"birthDate\":\"1990-01-02\",\"unknown\":{\"nested\":[1,2]},\"firstName\":\"Bo\"}", // coercion, ISO date and an unknown field
+                "{}");
+        for (String input : inputs) {
+            PersonDTO read = shared.fromJsonString(input, PersonDTO.class);
+            assertEquals(jackson.valueToTree(jacksonRead(jackson, input)), jackson.valueToTree(read), input);
+        }
+        SimplePersonDTO simple = shared.fromJsonString("{\"id\":\"0f8fad5b-d9cb-469f-a165-70867728950e\",\"jobTitle\":\"ADMIN\",\"birthday\":[2000,1,1]}", SimplePersonDTO.class);
+        assertEquals(SimplePersonDTO.JobTitle.ADMIN, simple.getJobTitle());
+        assertEquals(LocalDate.of(2000, 1, 1), simple.getBirthday());
+        assertThrows(UncheckedIOException.class, () -> shared.fromJsonString("[1,2]", PersonDTO.class));
+    }
+
+    private static PersonDTO jacksonRead(ObjectMapper jackson, String json) {
+        try {
+            return jackson.readerFor(PersonDTO.class).readValue(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static List<PersonDTO> persons() {
+        List<PersonDTO> persons = new ArrayList<>();
+        for (long i = 1; i <= LIST_SIZE; i++)
+            persons.add(new PersonDTO(i, "Hans" + i, "Hansen", "hans" + i + "@mail.dk", LocalDate.of(1980, 1, 1).plusDays(i), 0));
+        return persons;
+    }
+
+    private static List<SimplePersonDTO> simplePersons() {
+        List<SimplePersonDTO> persons = new ArrayList<>();
+        for (int i = 1; i <= LIST_SIZE; i++)
+            persons.add(new SimplePersonDTO(UUID.nameUUIDFromBytes(new byte[]{(byte) i, (byte) (i >> 8)}), "Grethe" + i, "Hansen"
+                    , "grethe" + i + "@mail.dk", LocalDate.of(1990, 1, 1).plusDays(i), SimplePersonDTO.JobTitle.STUDENT));
+        return persons;
+    }
+}
@@ -8,7 +8,10 @@ import dk.ek.dtos.SimplePersonDTO;
 import dk.ek.persistence.HibernateConfig;
 import dk.ek.persistence.model.Person;
 import dk.ek.rest.ApplicationConfig;
+import dk.ek.rest.ContentNegotiation;
 import dk.ek.rest.RestRoutes;
+import dk.ek.rest.LastWriteCookie;
+import dk.ek.rest.ServerTiming;
 import dk.ek.rest.controllers.PersonController;
 import io.restassured.RestAssured;
 import io.restassured.http.ContentType;
@@ -19,6 +22,10 @@ import jakarta.persistence.EntityManagerFactory;
 import org.eclipse.jetty.http.HttpStatus;
 import org.junit.jupiter.api.*;
 
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
 import java.time.LocalDate;
 import java.util.Arrays;
 import java.util.List;
@@ -69,6 +76,8 @@ class PersonHandlerTest {
 //                .setRoute(SecurityRoutes.getSecuredRoutes())
                 .setRoute(restRoutes.personEntityRoutes) // A different way to get the EndpointGroup. Getting data from DB
                 .setCORS()
+                .setMetrics()
+                .setServerTiming()
 //                .setApiExceptionHandling()
                 .startServer(7777)
         ;
@@ -140,6 +149,153 @@ class PersonHandlerTest {
                 .body("size()", equalTo(3));
     }
 
+    @Test
+    @DisplayName("Get persons one page at a time")
+    void getPage() {
+        String next = given()
+                .when()
+                .get("/person?limit=2")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("size()", equalTo(2))
+                .header("X-Next-Cursor", notNullValue())
+                .extract().header("X-Next-Cursor");
+
+        given()
+                .when()
+                .get("/person?limit=2&after=" + next)
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("size()", equalTo(1))
+                .header("X-Next-Cursor", nullValue());
+
+        given().when().get("/person?limit=100000").then().statusCode(400);
+    }
+
+    @Test
+    @DisplayName("Stream all persons")
+    void getAllStreamed() {
+        given()
+                .when()
+                .get("/person?stream=true")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .contentType(ContentType.JSON)
+                .body("size()", equalTo(3))
+                .body("firstName", hasItems("Hans", "Grethe", "Heksen"));
+    }
+
+    @Test
+    @DisplayName("Search persons by last name and text")
+    void search() {
+        given()
+                .when()
+                .get("/person?lastName=hansen&q=ret&sort=-birthDate")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("size()", equalTo(1))
+                .body("[0].firstName", equalTo("Grethe"));
+        given().when().get("/person?firstName=Hans").then().statusCode(400);
+        given().when().get("/person?q=he").then().statusCode(400);
+        given().when().get("/person?sort=email").then().statusCode(400);
+        given().when().get("/person?bornAfter=1990-01-01&sort=lastName").then().statusCode(400);
+    }
+
+    @Test
+    @DisplayName("Get only the fields asked for")
+    void sparseFields() {
+        given()
+                .when()
+                .get("/person?limit=2&fields=firstName,email")
+                .then()
+                .statusCode(200)
+                .body("size()", equalTo(2))
+                .body("[0].keySet()", contains("id", "firstName", "email"))
+                .header("X-Next-Cursor", notNullValue());
+        given()
+                .when()
+                .get("/person/{id}?fields=lastName", entities.get("Person2").getId())
+                .then()
+                .statusCode(200)
+                .body("lastName", equalTo("Hansen"))
+                .body("$", not(hasKey("address")));
+        given().when().get("/person?lastName=hansen&sort=-birthDate&fields=birthDate").then().statusCode(200).body("[0].keySet()", contains("id", "birthDate"));
+        given().when().get("/person?fields=firstName,password").then().statusCode(400);
+    }
+
+    @Test
+    @DisplayName("Suggest persons by prefix as they are created, updated and deleted")
+    void suggest() throws JsonProcessingException {
+        String requestBody = jsonMapper.writeValueAsString(new PersonDTO(null, "Søren", "Zylberstein", "soren.zyl@mail.com", LocalDate.of(1985, 2, 3)));
+        int id = given()
+                .contentType(ContentType.JSON)
+                .body(requestBody)
+                .post("/person")
+                .then()
+                .statusCode(201)
+                .extract().path("id");
+
+        given()
+                .when()
+                .get("/person/suggest?prefix=zylb")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .body("size()", equalTo(1))
+                .body("[0].id", equalTo(id))
+                .body("[0].firstName", equalTo("Søren"));
+        given().when().get("/person/suggest?prefix=SOREN ZY").then().statusCode(200).body("[0].id", equalTo(id)); // case and accents are ignored
+
+        String updated = jsonMapper.writeValueAsString(new PersonDTO((long) id, "Søren", "Zwirner", "soren.zyl@mail.com", LocalDate.of(1985, 2, 3)));
+        given().contentType(ContentType.JSON).body(updated).put("/person/" + id).then().statusCode(200);
+        given().when().get("/person/suggest?prefix=zylb").then().statusCode(200).body("size()", equalTo(0));
+        given().when().get("/person/suggest?prefix=zwir").then().statusCode(200).body("[0].lastName", equalTo("Zwirner"));
+
+        given().delete("/person/" + id).then().statusCode(200);
+        given().when().get("/person/suggest?prefix=zwir").then().statusCode(200).body("size()", equalTo(0));
+        given().when().get("/person/suggest?prefix=a&limit=500").then().statusCode(400);
+    }
+
+    @Test
+    @DisplayName("Export persons as filtered CSV")
+    void exportCsv() {
+        String csv = given()
+                .when()
+                .get("/person/export?format=csv&firstName=Grethe")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .contentType(containsString("text/csv"))
+                .extract().asString();
+        List<String> lines = csv.lines().toList();
+        assertEquals("id,firstName,lastName,email,birthDate,version", lines.get(0));
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1).contains("grethe@gmail.com"));
+        // values are escaped, not executed
+        given().when().get("/person/export?lastName=O'Brien' OR '1'='1").then().statusCode(200).body(equalTo("id,firstName,lastName,email,birthDate,version\n"));
+    }
+
+    @Test
+    @DisplayName("Export persons as gzipped NDJSON")
+    void exportNdjson() throws JsonProcessingException {
+        String ndjson = given()
+                .when()
+                .get("/person/export?format=ndjson&gzip=true")
+                .then()
+                .assertThat()
+                .statusCode(200)
+                .header("Content-Encoding", "gzip")
+                .extract().asString(); // RestAssured unzips the body
+        List<String> lines = ndjson.lines().toList();
+        assertEquals(3, lines.size());
+        PersonDTO first = jsonMapper.readValue(lines.get(0), PersonDTO.class);
+        assertEquals(entities.values().stream().mapToLong(Person::getId).min().getAsLong(), first.getId());
+    }
+
     @Test
     @DisplayName("Get all persons check first person")
     void testAllBody() {
@@ -211,6 +367,139 @@ class PersonHandlerTest {
                 .body("firstName", equalTo(person.getFirstName()));
     }
 
+    @Test
+    @DisplayName("Test CBOR and Smile are used when the client asks for them, and JSON otherwise")
+    public void binaryFormats() throws Exception {
+        Person person = entities.get("Person3");
+        ObjectMapper cbor = ContentNegotiation.Format.CBOR.getObjectMapper();
+        byte[] body = given()
+                .accept("application/json;q=0.5, application/cbor")
+                .get("/person/{id}", person.getId())
+                .then()
+                .statusCode(200)
+                .contentType("application/cbor")
+                .header("Vary", containsString("Accept"))
+                .extract().asByteArray();
+        assertEquals(new PersonDTO(person), cbor.readValue(body, PersonDTO.class));
+
+        ObjectMapper smile = ContentNegotiation.Format.SMILE.getObjectMapper();
+        SimplePersonDTO newPerson = new SimplePersonDTO("Sigrid", "Smile", "sigrid@mail.dk", LocalDate.of(1999, 9, 9), SimplePersonDTO.JobTitle.STUDENT);
+        body = given()
+                .contentType("application/x-jackson-smile")
+                .accept("application/x-jackson-smile")
+                .body(smile.writeValueAsBytes(newPerson))
+                .post("/open/person")
+                .then()
+                .statusCode(201)
+                .contentType("application/x-jackson-smile")
+                .extract().asByteArray();
+        SimplePersonDTO created = smile.readValue(body, SimplePersonDTO.class);
+        assertEquals("sigrid@mail.dk", created.getEmail());
+        assertEquals(LocalDate.of(1999, 9, 9), created.getBirthday());
+
+        given().accept("text/html, */*").get("/open/person/" + created.getId()).then().statusCode(200).contentType(ContentType.JSON).body("firstName", equalTo("Sigrid"));
+        given().contentType("application/cbor").body(new byte[]{(byte) 0xff, 0x01}).post("/person").then().statusCode(400);
+    }
+
+    @Test
+    @DisplayName("Test large responses are compressed and static files are served precompressed with an ETag")
+    public void compression() {
+        StringBuilder persons = new StringBuilder("[");
+        for (int i = 0; i < 30; i++)
+            persons.append(i == 0 ? "" : ",").append("{\"firstName\":\"Zip").append(i).append("\",\"lastName\":\"Zipper\",\"email\":\"zip").append(i).append("@mail.dk\",\"birthDate\":\"1990-01-01\"}");
+        given().contentType(ContentType.JSON).body(persons.append("]").toString()).post("/person/bulk").then().statusCode(201);
+        given().header("Accept-Encoding", "gzip").get("/person").then().statusCode(200).header("Content-Encoding", "gzip").body("size()", equalTo(33));
+        given().header("Accept-Encoding", "br").get("/person").then().statusCode(200).header("Content-Encoding", "br");
+        given().header("Accept-Encoding", "gzip").get("/person/" + entities.get("Person1").getId()).then().statusCode(200).header("Content-Encoding", nullValue()); // below the threshold
+
+        String etag = given()
+                .header("Accept-Encoding", "br, gzip")
+                .get("/index.html")
+                .then()
+                .statusCode(200)
+                .header("Content-Encoding", "br")
+                .header("Cache-Control", "no-cache")
+                .header("ETag", matchesPattern("\"[0-9a-f]{64}-br\""))
+                .extract().header("ETag");
+        given().header("Accept-Encoding", "br, gzip").header("If-None-Match", etag).get("/index.html").then().statusCode(304);
+        given().header("Accept-Encoding", "gzip").header("If-None-Match", etag).get("/").then().statusCode(200).body(containsString("API Documentation"));
+    }
+
+    @Test
+    @DisplayName("Test requests are counted per route template in the Prometheus metrics")
+    public void metrics() {
+        given().get("/person/" + entities.get("Person1").getId()).then().statusCode(200);
+        given().get("/person/" + entities.get("Person2").getId()).then().statusCode(200);
+        given().get("/person/999999999").then().statusCode(404);
+        given().get("/no/such/route").then().statusCode(404);
+
+        String metrics = given().get("/metrics").then().statusCode(200).contentType(containsString("text/plain")).extract().asString();
+        assertThat(metrics, containsString("http_server_requests_total{method=\"GET\",route=\"/person/{id}\",status=\"200\"}"));
+        assertThat(metrics, containsString("http_server_requests_total{method=\"GET\",route=\"/person/{id}\",status=\"404\"}"));
+        assertThat(metrics, containsString("http_server_requests_seconds_bucket{method=\"GET\",route=\"/person/{id}\",le=\"+Inf\"}"));
+        assertThat(metrics, containsString("route=\"unmatched\",status=\"404\""));
+        assertThat(metrics, not(containsString("/person/999999999")));
+        assertThat(metrics, containsString("http_server_requests_in_flight{method=\"GET\",route=\"/metrics\"} 1"));
+        assertThat(metrics, containsString("http_server_requests_in_flight{method=\"GET\",route=\"/person/{id}\"} 0")); // also after the failed lookup
+        assertThat(metrics, containsString("jvm_memory_used_bytes{area=\"heap\"}"));
+        assertThat(metrics, containsString("db_pool_acquire_seconds_count"));
+    }
+
+    @Test
+    @DisplayName("Test the Server-Timing header and switching it off and on over JMX")
+    public void serverTiming() throws Exception {
+        String timing = "db;dur=[0-9.]+;desc=\"%s statements\", serialize;dur=[0-9.]+, handler;dur=[0-9.]+, total;dur=[0-9.]+";
+        given().get("/person?limit=10").then().statusCode(200).header(ServerTiming.HEADER, matchesPattern(String.format(timing, "\\d+")));
+        given().contentType(ContentType.JSON)
+                .body("[{\"firstName\":\"Timo\",\"lastName\":\"Timer\",\"email\":\"timo@mail.dk\",\"birthDate\":\"1990-01-01\"}]")
+                .post("/person/bulk")
+                .then().statusCode(201).header(ServerTiming.HEADER, matchesPattern(String.format(timing, "[1-9]\\d*")));
+        given().get("/person/999999999").then().statusCode(404).header(ServerTiming.HEADER, notNullValue()); // failed ctx.future
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("dk.ek:type=ServerTiming");
+        server.setAttribute(name, new Attribute("Enabled", false));
+        try {
+            given().get("/person?limit=10").then().statusCode(200).header(ServerTiming.HEADER, nullValue());
+        } finally {
+            server.setAttribute(name, new Attribute("Enabled", true));
+        }
+        given().get("/person?limit=10").then().statusCode(200).header(ServerTiming.HEADER, notNullValue());
+    }
+
+    @Test
+    @DisplayName("Test that a write, and only a write, tells the client the time of its last write")
+    public void lastWriteCookie() {
+        long before = System.currentTimeMillis();
+        given().get("/person?limit=10").then().statusCode(200).header("Set-Cookie", nullValue());
+        String lastWrite = given().contentType(ContentType.JSON)
+                .body("[{\"firstName\":\"Rita\",\"lastName\":\"Replica\",\"email\":\"rita@mail.dk\",\"birthDate\":\"1990-01-01\"}]")
+                .post("/person/bulk")
+                .then().statusCode(201).header(LastWriteCookie.HEADER, notNullValue())
+                .extract().cookie(LastWriteCookie.NAME);
+        assertTrue(Long.parseLong(lastWrite) >= before);
+        given().cookie(LastWriteCookie.NAME, lastWrite).get("/person?limit=10").then().statusCode(200).header("Set-Cookie", nullValue());
+    }
+
+    @Test
+    @DisplayName("Test that the single person writes, which complete on the DbExecutor, tell the client the time of its last write")
+    public void lastWriteCookieAsync() throws JsonProcessingException {
+        long before = System.currentTimeMillis();
+        Response created = given().contentType(ContentType.JSON)
+                .body(jsonMapper.writeValueAsString(new PersonDTO(null, "Asta", "Async", "asta@mail.dk", LocalDate.of(1990, 1, 1))))
+                .post("/person");
+        created.then().statusCode(201).header(LastWriteCookie.HEADER, notNullValue()).cookie(LastWriteCookie.NAME, notNullValue());
+        assertTrue(Long.parseLong(created.getCookie(LastWriteCookie.NAME)) >= before);
+        int id = created.path("id");
+
+        String updated = jsonMapper.writeValueAsString(new PersonDTO((long) id, "Asta", "Await", "asta@mail.dk", LocalDate.of(1990, 1, 1)));
+        given().contentType(ContentType.JSON).body(updated).put("/person/" + id)
+                .then().statusCode(200).header(LastWriteCookie.HEADER, notNullValue()).cookie(LastWriteCookie.NAME, notNullValue());
+        given().delete("/person/" + id)
+                .then().statusCode(200).header(LastWriteCookie.HEADER, notNullValue()).cookie(LastWriteCookie.NAME, notNullValue());
+        given().get("/person/" + id).then().statusCode(404).header("Set-Cookie", nullValue()); // a failed read writes nothing
+    }
+
     @Test
     @DisplayName("Test get a 404 status code when person not found")
     public void testError() {
@@ -299,6 +588,14 @@ class PersonHandlerTest {
                 .body("id", notNullValue())
                 .body("firstName", equalTo("Helge"))
                 .body("email", equalTo("mail@mail.com"));
+
+        given() // the email is taken now
+                .contentType(ContentType.JSON)
+                .body(requestBody)
+                .post("/person")
+                .then()
+                .statusCode(409)
+                .body("status", equalTo(409));
     }
 
     @Test
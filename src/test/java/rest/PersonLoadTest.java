@@ -0,0 +1,132 @@
+package rest;
+
+import dk.ek.persistence.HibernateConfig;
+import dk.ek.persistence.model.Person;
+import dk.ek.rest.ApplicationConfig;
+import dk.ek.rest.PinningGuard;
+import dk.ek.rest.RestRoutes;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Purpose: Compares throughput of GET /api/person/{id} on platform threads and on virtual threads at increasing concurrency.
+ * On platform threads the queries run on the DbExecutor, on virtual threads on the request's own thread (see DbExecutor.supply).
+ * Takes a while, so it only runs when asked for: mvn test -Dtest=PersonLoadTest -Dloadtest=true
+ * Optional: -Dloadtest.seconds=<seconds per step> (default 5) and -Dloadtest.concurrency=<comma separated client counts> (default 8,32,128,512)
+ */
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+class PersonLoadTest {
+    private static final int PORT = 7778;
+    private static final String URL = "http://localhost:" + PORT + "/api/person/";
+
+    private static List<Long> ids;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+
+    @BeforeAll
+    static void setUpAll() {
+        HibernateConfig.setTestMode(true);
+        ids = new TestUtils().createPersonEntities(HibernateConfig.getEntityManagerFactory())
+                .values().stream().map(Person::getId).toList();
+    }
+
+    @AfterAll
+    static void tearDownAll() {
+        HibernateConfig.setTestMode(false);
+    }
+
+    @Test
+    @DisplayName("Throughput of GET /person/{id} on platform threads vs virtual threads")
+    void throughputByConcurrency() throws InterruptedException {
+        int seconds = Integer.getInteger("loadtest.seconds", 5);
+        String[] levels = System.getProperty("loadtest.concurrency", "8,32,128,512").split(",");
+
+        List<String> report = new ArrayList<>();
+        report.add(String.format("%-9s %12s %12s %10s %8s %8s", "mode", "concurrency", "requests/s", "avg ms", "503", "errors"));
+        for (boolean virtual : new boolean[]{false, true}) {
+            ApplicationConfig appConfig = startServer(virtual);
+            try {
+                run(8, 2); // warm up JIT, connection pool and second-level cache
+                for (String level : levels) {
+                    Result result = run(Integer.parseInt(level.trim()), seconds);
+                    report.add(String.format("%-9s %12s %12.0f %10.2f %8d %8d", virtual ? "virtual" : "platform", level.trim()
+                            , result.ok.sum() / (double) seconds, result.avgMillis(), result.busy.sum(), result.errors.sum()));
+                    assertTrue(result.ok.sum() > 0, "No successful requests at concurrency " + level);
+                }
+                PinningGuard guard = ApplicationConfig.getPinningGuard();
+                if (virtual) {
+                    report.add("pinned virtual threads: " + guard.getPinnedCount() + " (in our code: " + guard.getPinnedInOurCodeCount() + ")");
+                    assertEquals(0, guard.getPinnedInOurCodeCount(), "Virtual threads were pinned in our code, see the log for the stack traces");
+                }
+            } finally {
+                appConfig.stopServer();
+            }
+        }
+        report.forEach(System.out::println);
+    }
+
+    private static ApplicationConfig startServer(boolean virtual) {
+        RestRoutes restRoutes = new RestRoutes();
+        return ApplicationConfig.getInstance()
+                .initiateServer(virtual)
+                .setGeneralExceptionHandling()
+                .setRoute(restRoutes.personEntityRoutes)
+                .startServer(PORT);
+    }
+
+    // Every client sends requests back to back for the given time
+    private Result run(int concurrency, int seconds) throws InterruptedException {
+        Result result = new Result();
+        long end = System.nanoTime() + Duration.ofSeconds(seconds).toNanos();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                clients.submit(() -> {
+                    while (System.nanoTime() < end) {
+                        long id = ids.get(ThreadLocalRandom.current().nextInt(ids.size()));
+                        HttpRequest request = HttpRequest.newBuilder(URI.create(URL + id)).timeout(Duration.ofSeconds(30)).build();
+                        long start = System.nanoTime();
+                        try {
+                            int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                            if (status == 200) {
+                                result.ok.increment();
+                                result.nanos.add(System.nanoTime() - start);
+                            } else if (status == 503) {
+                                result.busy.increment();
+                            } else {
+                                result.errors.increment();
+                            }
+                        } catch (Exception e) {
+                            result.errors.increment();
+                        }
+                    }
+                });
+            }
+        }
+        return result;
+    }
+
+    private static class Result {
+        private final LongAdder ok = new LongAdder();
+        private final LongAdder busy = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        double avgMillis() {
+            return ok.sum() == 0 ? 0 : nanos.sum() / 1_000_000.0 / ok.sum();
+        }
+    }
+}